@@ -12,6 +12,23 @@ var server = new org.mortbay.jetty.Server();
 var connector=new org.mortbay.jetty.nio.SelectChannelConnector();
 connector.setPort(8080);
 server.setConnectors([connector]);
+
+// -Dcirrus.virtualThreads=true dispatches each request in a new virtual thread (java 21)
+if (java.lang.System.getProperty("cirrus.virtualThreads") == "true"
+        && !java.lang.System.getProperty("debugjs")
+        && java.util.concurrent.Executors.newVirtualThreadPerTaskExecutor) {
+    print("using virtual threads");
+    var executor = java.util.concurrent.Executors.newVirtualThreadPerTaskExecutor();
+    server.setThreadPool(new org.mortbay.thread.ThreadPool({
+        dispatch: function(job) { executor.execute(job); return true; },
+        join: function() {
+            executor.awaitTermination(java.lang.Long.MAX_VALUE, java.util.concurrent.TimeUnit.MILLISECONDS);
+        },
+        getThreads: function() { return 0; },
+        getIdleThreads: function() { return 0; },
+        isLowOnThreads: function() { return false; }
+    }));
+}
 webapp = new org.mortbay.jetty.webapp.WebAppContext();
 webapp.setContextPath("/");
 webapp.setWar("src/test/webapp");
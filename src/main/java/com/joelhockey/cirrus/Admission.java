@@ -0,0 +1,261 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control used by 'cirrus.service' before a request takes a
+ * DB connection.  Rejected requests get 503 straight away.
+ * <p>
+ * Controllers with property 'concurrency' have their own bulkhead which
+ * allows that many requests at once, and property 'queue' requests
+ * waiting for them.  Bulkheaded requests do not count against the
+ * shared limit, so a slow controller cannot starve the others.
+ * <p>
+ * All other requests share an adaptive limit, set with config
+ * 'concurrencyLimit' (0 for no limit).  The limit follows the gradient
+ * between the lowest and the current latency: it shrinks when latency
+ * grows to more than {@link #TOLERANCE} times the lowest, grows while
+ * latency is low, and backs off when requests end with 503.
+ * @author Joel Hockey
+ */
+public class Admission {
+    /** Latency can grow by this factor before limit shrinks. */
+    public static final double TOLERANCE = 2.0;
+    /** Weight of each sample when limit changes. */
+    public static final double SMOOTHING = 0.2;
+    /** Factor applied to limit when request ends with 503. */
+    public static final double BACKOFF = 0.9;
+    /** Samples before lowest latency is measured again. */
+    public static final int PROBE_SAMPLES = 1000;
+    /** Max millis a request waits in a bulkhead queue. */
+    public static final long MAX_QUEUE_WAIT = 10000;
+
+    private double limit;
+    private int maxLimit;
+    private int inflight;
+    private long minLatency;
+    private int samples;
+    private AtomicLong rejected = new AtomicLong();
+    private ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+
+    /**
+     * Set shared limit.
+     * @param limit initial limit, 0 for no limit
+     * @param maxLimit max limit, at least initial limit
+     */
+    public synchronized void setLimit(int limit, int maxLimit) {
+        this.limit = limit;
+        this.maxLimit = Math.max(limit, maxLimit);
+        minLatency = 0;
+        samples = 0;
+    }
+
+    /**
+     * Admit request.
+     * @param controller controller name
+     * @param concurrency max requests for controller, 0 to use shared limit
+     * @param queue max requests waiting for controller
+     * @return permit which must be released, or null if rejected
+     */
+    public Permit admit(String controller, int concurrency, int queue) {
+        if (concurrency > 0) {
+            Bulkhead bulkhead = bulkheads.get(controller);
+            while (bulkhead == null || bulkhead.concurrency != concurrency
+                    || bulkhead.queue != queue) {
+                // concurrent requests share whichever bulkhead is stored,
+                // replaced when controller is reloaded with different limits
+                Bulkhead created = new Bulkhead(concurrency, queue);
+                if (bulkhead == null) {
+                    bulkhead = bulkheads.putIfAbsent(controller, created);
+                    if (bulkhead == null) {
+                        bulkhead = created;
+                    }
+                } else if (bulkheads.replace(controller, bulkhead, created)) {
+                    bulkhead = created;
+                } else {
+                    bulkhead = bulkheads.get(controller);
+                }
+            }
+            return bulkhead.acquire() ? new Permit(bulkhead, 0) : null;
+        }
+        synchronized (this) {
+            if (limit > 0 && inflight >= (int) limit) {
+                rejected.incrementAndGet();
+                return null;
+            }
+            return new Permit(null, ++inflight);
+        }
+    }
+
+    // update limit using latency of request
+    private synchronized void sample(int startInflight, long latency, boolean dropped) {
+        inflight--;
+        if (limit <= 0) {
+            return;
+        }
+        if (minLatency == 0 || latency < minLatency || ++samples % PROBE_SAMPLES == 0) {
+            minLatency = Math.max(1, latency);
+        }
+        double newLimit;
+        if (dropped) {
+            newLimit = limit * BACKOFF;
+        } else if (startInflight * 2 >= limit) {
+            // only change when busy, otherwise limit is not being tested
+            double gradient = Math.max(0.5, Math.min(1.0,
+                    TOLERANCE * minLatency / Math.max(1, latency)));
+            newLimit = limit * (1 - SMOOTHING)
+                    + (limit * gradient + Math.sqrt(limit)) * SMOOTHING;
+        } else {
+            return;
+        }
+        limit = Math.max(1, Math.min(maxLimit, newLimit));
+    }
+
+    /** @return shared limit, 0 if no limit */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /** @return requests running under shared limit */
+    public synchronized int getInflight() {
+        return inflight;
+    }
+
+    /** @return requests rejected by shared limit */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /** @return bulkheads by controller name */
+    public Map<String, Bulkhead> getBulkheads() {
+        return new TreeMap<String, Bulkhead>(bulkheads);
+    }
+
+    /**
+     * @param controller controller name
+     * @return bulkhead for controller, or null if none
+     */
+    public Bulkhead getBulkhead(String controller) {
+        return bulkheads.get(controller);
+    }
+
+    /** @return limit and counts */
+    @Override
+    public String toString() {
+        return "admission limit=" + getLimit() + " inflight=" + getInflight()
+                + " rejected=" + rejected + " bulkheads=" + getBulkheads();
+    }
+
+    /** Admitted request, released when request ends. */
+    public class Permit {
+        private Bulkhead bulkhead;
+        private int startInflight;
+        private long start = System.nanoTime();
+        private boolean released;
+
+        Permit(Bulkhead bulkhead, int startInflight) {
+            this.bulkhead = bulkhead;
+            this.startInflight = startInflight;
+        }
+
+        /**
+         * Release permit, does nothing if already released.
+         * @param status HTTP status of response, 503 reduces limit
+         */
+        public void release(int status) {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (bulkhead != null) {
+                bulkhead.release();
+            } else {
+                sample(startInflight, System.nanoTime() - start, status == 503);
+            }
+        }
+    }
+
+    /** Requests allowed at once for a controller and queue for them. */
+    public static class Bulkhead {
+        private int concurrency;
+        private int queue;
+        private Semaphore permits;
+        private AtomicInteger waiting = new AtomicInteger();
+        private AtomicLong rejected = new AtomicLong();
+
+        Bulkhead(int concurrency, int queue) {
+            this.concurrency = concurrency;
+            this.queue = queue;
+            permits = new Semaphore(concurrency, true);
+        }
+
+        // wait in queue if full, until deadline or MAX_QUEUE_WAIT
+        boolean acquire() {
+            if (permits.tryAcquire()) {
+                return true;
+            }
+            if (waiting.incrementAndGet() > queue) {
+                waiting.decrementAndGet();
+                rejected.incrementAndGet();
+                return false;
+            }
+            try {
+                long wait = Math.min(MAX_QUEUE_WAIT, Deadline.current().remainingMillis());
+                if (permits.tryAcquire(Math.max(0, wait), TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiting.decrementAndGet();
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        void release() {
+            permits.release();
+        }
+
+        /** @return max requests at once */
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        /** @return max requests waiting */
+        public int getQueue() {
+            return queue;
+        }
+
+        /** @return requests running */
+        public int getRunning() {
+            return concurrency - permits.availablePermits();
+        }
+
+        /** @return requests waiting */
+        public int getWaiting() {
+            return waiting.get();
+        }
+
+        /** @return requests rejected */
+        public long getRejectedCount() {
+            return rejected.get();
+        }
+
+        /** @return running, waiting and rejected counts */
+        @Override
+        public String toString() {
+            return "running=" + getRunning() + "/" + concurrency + " waiting="
+                    + getWaiting() + "/" + queue + " rejected=" + rejected;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response which keeps status, headers and body in memory so that a
+ * request can run on a thread other than the container thread.  The
+ * container thread copies it to the real response with
+ * {@link #complete()}.  Used by {@link Dispatcher}.
+ * @author Joel Hockey
+ */
+public class BufferedResponse extends HttpServletResponseWrapper {
+    private static final String DEFAULT_ENCODING = "ISO-8859-1";
+
+    private int status = SC_OK;
+    private String errorMessage;
+    private String redirect;
+    private boolean error;
+    private boolean committed;
+    // values are String, or Long for date headers
+    private Map<String, List<Object>> headers =
+            new TreeMap<String, List<Object>>(String.CASE_INSENSITIVE_ORDER);
+    private List<Cookie> cookies = new ArrayList<Cookie>();
+    private String contentType;
+    private String characterEncoding;
+    private int contentLength = -1;
+    private Locale locale;
+    private ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private ServletOutputStream outs;
+    private PrintWriter writer;
+
+    /** @param response real response written by {@link #complete()} */
+    public BufferedResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Copy status, headers and body to real response.  Must be called
+     * in container thread after request has finished.
+     * @throws IOException if error writing response
+     */
+    public void complete() throws IOException {
+        HttpServletResponse res = (HttpServletResponse) getResponse();
+        if (writer != null) {
+            writer.flush();
+        }
+        for (Cookie cookie : cookies) {
+            res.addCookie(cookie);
+        }
+        for (Map.Entry<String, List<Object>> entry : headers.entrySet()) {
+            for (Object value : entry.getValue()) {
+                if (value instanceof Long) {
+                    res.addDateHeader(entry.getKey(), ((Long) value).longValue());
+                } else {
+                    res.addHeader(entry.getKey(), (String) value);
+                }
+            }
+        }
+        if (locale != null) {
+            res.setLocale(locale);
+        }
+        if (redirect != null) {
+            res.sendRedirect(redirect);
+            return;
+        } else if (error) {
+            res.sendError(status, errorMessage);
+            return;
+        }
+        res.setStatus(status);
+        if (contentType != null) {
+            res.setContentType(contentType);
+        }
+        if (characterEncoding != null) {
+            res.setCharacterEncoding(characterEncoding);
+        }
+        if (contentLength >= 0) {
+            res.setContentLength(contentLength);
+        }
+        if (body.size() > 0) {
+            body.writeTo(res.getOutputStream());
+        }
+    }
+
+    /** @return HTTP status */
+    public int getStatus() {
+        return status;
+    }
+
+    /** @return bytes written to body */
+    public byte[] toByteArray() {
+        if (writer != null) {
+            writer.flush();
+        }
+        return body.toByteArray();
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        cookies.add(cookie);
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+        return headers.containsKey(name);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        checkCommitted();
+        resetBuffer();
+        status = sc;
+        errorMessage = msg;
+        error = true;
+        committed = true;
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        sendError(sc, null);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        checkCommitted();
+        resetBuffer();
+        status = SC_MOVED_TEMPORARILY;
+        redirect = location;
+        committed = true;
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        headers.remove(name);
+        addDateHeader(name, date);
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        values(name).add(Long.valueOf(date));
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        headers.remove(name);
+        addHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        values(name).add(value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        setHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        addHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        status = sc;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm) {
+        status = sc;
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        if (characterEncoding != null) {
+            return characterEncoding;
+        }
+        String charset = contentType == null ? null : charset(contentType);
+        return charset != null ? charset : DEFAULT_ENCODING;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter already called");
+        }
+        if (outs == null) {
+            outs = new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+
+                @Override
+                public void write(byte[] buf, int off, int len) {
+                    body.write(buf, off, len);
+                }
+            };
+        }
+        return outs;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (outs != null) {
+            throw new IllegalStateException("getOutputStream already called");
+        }
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(body, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+        if (writer == null) {
+            characterEncoding = charset;
+        }
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        contentLength = len;
+    }
+
+    @Override
+    public void setContentType(String type) {
+        contentType = type;
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+        // body is always buffered
+    }
+
+    @Override
+    public int getBufferSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        // real response is only written by container thread
+        if (writer != null) {
+            writer.flush();
+        }
+        committed = true;
+    }
+
+    @Override
+    public void resetBuffer() {
+        checkCommitted();
+        if (writer != null) {
+            writer.flush();
+        }
+        body.reset();
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    @Override
+    public void reset() {
+        resetBuffer();
+        status = SC_OK;
+        headers.clear();
+        cookies.clear();
+        contentType = null;
+        characterEncoding = null;
+        contentLength = -1;
+    }
+
+    @Override
+    public void setLocale(Locale loc) {
+        locale = loc;
+    }
+
+    @Override
+    public Locale getLocale() {
+        return locale != null ? locale : getResponse().getLocale();
+    }
+
+    private List<Object> values(String name) {
+        List<Object> values = headers.get(name);
+        if (values == null) {
+            values = new ArrayList<Object>(1);
+            headers.put(name, values);
+        }
+        return values;
+    }
+
+    private void checkCommitted() {
+        if (committed) {
+            throw new IllegalStateException("response already committed");
+        }
+    }
+
+    // charset param of content type, or null
+    private static String charset(String contentType) {
+        int i = contentType.toLowerCase(Locale.ENGLISH).indexOf("charset=");
+        if (i < 0) {
+            return null;
+        }
+        String charset = contentType.substring(i + 8).trim();
+        int end = charset.indexOf(';');
+        charset = end >= 0 ? charset.substring(0, end).trim() : charset;
+        return charset.length() > 1 && charset.charAt(0) == '"'
+                ? charset.substring(1, charset.length() - 1) : charset;
+    }
+}
@@ -2,28 +2,41 @@
 
 package com.joelhockey.cirrus;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.io.Reader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
 import java.io.Writer;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.IllegalFormatException;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -33,20 +46,27 @@ import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.sql.DataSource;
 
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.mozilla.javascript.BaseFunction;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextAction;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.JavaScriptException;
 import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.NativeJavaPackage;
 import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
 
 import com.joelhockey.cirrus.RhinoJava.RhinoList;
 
@@ -65,14 +85,60 @@ public class Cirrus extends NativeObject {
      */
     public static final RhinoJava WRAP_FACTORY = new RhinoJava();
 
+    /**
+     * ContextFactory used to create contexts configured for cirrus.
+     * Each thread reuses its own Context.
+     */
+    public static final CirrusContextFactory CONTEXT_FACTORY = new CirrusContextFactory();
+
+    /**
+     * Admission control shared by all shards and generations.  Shared
+     * limit is set from config 'concurrencyLimit'.
+     */
+    public static final Admission ADMISSION = new Admission();
+
     /** Time to wait before reloading changed js file. */
     public static final long RELOAD_WAIT = 10000;
 
+    // '{prototype name}' and '{render name}' tags in jst file
+    private static final Pattern JST_DEPS =
+            Pattern.compile("\\{[ \\t]*(prototype|render)[ \\t]+([^\\s{}]+)[ \\t]*\\}");
+
+    /**
+     * Notified when a script or template used by a sealed Cirrus
+     * has changed.  A sealed Cirrus cannot reload files itself.
+     */
+    public interface ChangeListener {
+        /**
+         * File has changed or was added.
+         * @param path changed file, e.g. '/app/controllers/user_controller.js'
+         */
+        void fileChanged(String path);
+    }
+
     // cache used to only reload scripts when timestamp on file changed
-    private Map<String, CacheEntry> cache = new HashMap<String, CacheEntry>();
+    private Map<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+    // compiled scripts reused across reloads
+    private ScriptCache scripts;
     private Scriptable global;
     private ServletConfig servletConfig;
     private ThreadLocal<DB> db;
+    private ChangeListener changeListener;
+    private boolean watched;
+    private boolean frozen;
+    // all files in '/app/' when frozen, so missing files are not looked up
+    private Set<String> frozenPaths;
+    // templates by name, set by loadAll and used once sealed
+    private Map<String, NativeObject> templates = new HashMap<String, NativeObject>();
+    // loaded modules by resolved path, and modules currently loading
+    private Map<String, Scriptable> modules = new ConcurrentHashMap<String, Scriptable>();
+    private ConcurrentMap<String, ModuleLoad> loadingModules =
+        new ConcurrentHashMap<String, ModuleLoad>();
+    // module load each thread is waiting for, used to detect circular waits
+    private Map<Thread, ModuleLoad> waitingModules = new HashMap<Thread, ModuleLoad>();
+    // templates used by each flattened page, with lastModified when flattened
+    private Map<String, Map<String, Long>> pageDeps = new ConcurrentHashMap<String, Map<String, Long>>();
+    private Router router = new Router(this);
 
     /**
      * Create Cirrus instance and load '/app/cirrus.js'.
@@ -85,13 +151,8 @@ public class Cirrus extends NativeObject {
     public Cirrus(ScriptableObject global, ServletConfig servletConfig)
             throws NamingException, IOException {
 
-        // get datasource using 'dbname' servlet init-param
-        InitialContext ic = new InitialContext();
-        String dbname = servletConfig.getInitParameter("dbname");
-        log.info("servlet init-params dbname=" + dbname
-                + ", looking up jndi for datasource");
-        DataSource dataSource = (DataSource) ic.lookup(dbname);
-        init(global, servletConfig, dataSource);
+        init(global, servletConfig, lookupDataSource(servletConfig),
+                scriptCache(servletConfig), true);
     }
 
     /**
@@ -101,12 +162,39 @@ public class Cirrus extends NativeObject {
      * @param dataSource datasource for DB
      */
     public Cirrus(ScriptableObject global, ServletConfig servletConfig, DataSource dataSource) throws IOException {
-        init(global, servletConfig, dataSource);
+        init(global, servletConfig, dataSource, scriptCache(servletConfig), true);
+    }
+
+    /**
+     * Create Cirrus instance and load '/app/cirrus.js'.
+     * @param global global scope
+     * @param servletConfig servlet config used to access files within web context
+     * @param dataSource datasource for DB
+     * @param scripts compiled scripts, may be shared with other Cirrus instances
+     */
+    public Cirrus(ScriptableObject global, ServletConfig servletConfig,
+            DataSource dataSource, ScriptCache scripts) throws IOException {
+        init(global, servletConfig, dataSource, scripts, true);
+    }
+
+    /**
+     * Create Cirrus instance without loading '/app/cirrus.js'.  Used
+     * by {@link Snapshot} which restores state from a previous instance.
+     */
+    Cirrus(ScriptableObject global, ServletConfig servletConfig,
+            DataSource dataSource, ScriptCache scripts, boolean loadCirrusJs)
+            throws IOException {
+        init(global, servletConfig, dataSource, scripts, loadCirrusJs);
     }
 
-    private void init(ScriptableObject global, ServletConfig servletConfig, final DataSource dataSource) throws IOException {
+    private void init(ScriptableObject global, ServletConfig servletConfig,
+            final DataSource dataSource, ScriptCache scripts,
+            boolean loadCirrusJs) throws IOException {
+
         this.global = global;
         this.servletConfig = servletConfig;
+
+        this.scripts = scripts;
         this.db = new ThreadLocal<DB>() {
             @Override
             protected DB initialValue() {
@@ -114,46 +202,282 @@ public class Cirrus extends NativeObject {
             };
         };
 
-        Context cx = Context.enter();
-        cx.setWrapFactory(WRAP_FACTORY);
-        ScriptRuntime.setObjectProtoAndParent(this, global);
-        put("controllers", this, cx.newObject(global));
-        put("models", this, cx.newObject(global));
-
-        // cirrus functions
-        String[] names = {
-            "dir",
-            "fileLastModified",
-            "getResource",
-            "getResourcePaths",
-            "h",
-            "jst",
-            "load",
-            "log",
-            "logwarn",
-            "logerror",
-            "print",
-            "readFile",
-            "sysout",
-        };
-        defineFunctionProperties(names, Cirrus.class, ScriptableObject.DONTENUM);
-        put("servletConfig", this, servletConfig);
-        put("servletContext", this, servletConfig.getServletContext());
+        // context may be created by another factory when called from js
+        Context cx = CONTEXT_FACTORY.enterContext();
+        try {
+            cx.setWrapFactory(WRAP_FACTORY);
+            ScriptRuntime.setObjectProtoAndParent(this, global);
+            put("controllers", this, cx.newObject(global));
+            put("models", this, cx.newObject(global));
+
+            // cirrus functions
+            String[] names = {
+                "controller",
+                "deadline",
+                "dir",
+                "env",
+                "fileLastModified",
+                "getResource",
+                "getResourcePaths",
+                "h",
+                "jst",
+                "load",
+                "log",
+                "logwarn",
+                "logerror",
+                "print",
+                "readFile",
+                "release",
+                "require",
+                "respond",
+                "route",
+                "admit",
+                "suspendRequest",
+                "suspending",
+                "sysout",
+            };
+            int readonly = ScriptableObject.DONTENUM | ScriptableObject.READONLY
+                    | ScriptableObject.PERMANENT;
+            defineFunctionProperties(names, Cirrus.class, readonly);
+            defineProperty("halt", new Halt.HaltFunction(global), readonly);
+            defineProperty("servletConfig", servletConfig, readonly);
+            defineProperty("servletContext", servletConfig.getServletContext(), readonly);
+
+            // update global with 'cirrus', 'JSON', 'h' and 'JST$name'
+            global.defineProperty("cirrus", this, ScriptableObject.READONLY);
+            global.defineProperty("JSON", new RhinoJSON(), ScriptableObject.READONLY);
+            // html-escape used by templates, jst.js does not replace it
+            BaseFunction h = new TemplateWriter.EscapeFunction();
+            ScriptRuntime.setFunctionProtoAndParent(h, global);
+            global.defineProperty("h", h, ScriptableObject.READONLY);
+            // names not in cx for templates without 'with (cx)'
+            BaseFunction name = new TemplateScope.NameFunction();
+            ScriptRuntime.setFunctionProtoAndParent(name, global);
+            global.defineProperty("JST$name", name, ScriptableObject.READONLY);
+
+            // load '/app/cirrus.js'
+            if (loadCirrusJs) {
+                load("/app/cirrus.js");
+            }
+        } finally {
+            Context.exit();
+        }
+    }
+
+    /**
+     * Return config value from servlet init-param, or if not set,
+     * from system property 'cirrus.&lt;name>'.
+     * @param servletConfig servlet config
+     * @param name name of init-param
+     * @param defaultValue value returned if not set
+     * @return config value or defaultValue if not set
+     */
+    public static String config(ServletConfig servletConfig, String name,
+            String defaultValue) {
+
+        String value = servletConfig.getInitParameter(name);
+        if (value == null) {
+            value = System.getProperty("cirrus." + name, defaultValue);
+        }
+        return value;
+    }
+
+    /**
+     * Return true if config 'frozen' is set.  Frozen cirrus loads
+     * all files at startup and never checks them for changes.
+     * @param servletConfig servlet config
+     * @return true if frozen
+     */
+    public static boolean frozen(ServletConfig servletConfig) {
+        return Boolean.parseBoolean(config(servletConfig, "frozen", "false"));
+    }
+
+    /**
+     * Return true if config 'continuations' is set.  Requests can then
+     * be suspended by 'cirrus.suspend' and 'cirrus.sleep' without
+     * holding a servlet thread.
+     * Not used with {@link #virtualThreads(ServletConfig)} where a
+     * suspended request simply blocks its virtual thread, or with config
+     * 'asyncThreads' where requests do not run on container threads.
+     * @param servletConfig servlet config
+     * @return true if continuations used
+     * @see Suspension
+     */
+    public static boolean continuations(ServletConfig servletConfig) {
+        return Boolean.parseBoolean(config(servletConfig, "continuations", "false"))
+                && !virtualThreads(servletConfig)
+                && Integer.parseInt(config(servletConfig, "asyncThreads", "0")) == 0;
+    }
+
+    /**
+     * Return true if config 'virtualThreads' is set and the JVM has
+     * virtual threads.  The container must dispatch each request on its
+     * own virtual thread (e.g. script/server.js), which then has its own
+     * DB, so blocking JDBC calls do not hold an OS thread.
+     * @param servletConfig servlet config
+     * @return true if requests run in virtual threads
+     * @see VirtualThreads
+     */
+    public static boolean virtualThreads(ServletConfig servletConfig) {
+        return Boolean.parseBoolean(config(servletConfig, "virtualThreads", "false"))
+                && VirtualThreads.isAvailable();
+    }
+
+    /**
+     * Look up DataSource in JNDI using config 'dbname'.
+     * @param servletConfig servlet config
+     * @return datasource
+     * @throws NamingException if error looking up
+     */
+    public static DataSource lookupDataSource(ServletConfig servletConfig)
+            throws NamingException {
+
+        // get datasource using 'dbname' servlet init-param
+        InitialContext ic = new InitialContext();
+        String dbname = config(servletConfig, "dbname", null);
+        log.info("servlet init-params dbname=" + dbname
+                + ", looking up jndi for datasource");
+        return (DataSource) ic.lookup(dbname);
+    }
+
+    /**
+     * Return rhino optimization level from config 'optimizationLevel'.
+     * Default is {@link ScriptCache#DEFAULT_OPTIMIZATION_LEVEL}, or -1
+     * (interpreted) when running in debug mode so that debugger can step.
+     * Always -1 if {@link #continuations(ServletConfig)} since only the
+     * interpreter can capture continuations.
+     * @param servletConfig servlet config
+     * @return optimization level
+     */
+    public static int optimizationLevel(ServletConfig servletConfig) {
+        if (continuations(servletConfig)) {
+            return -1;
+        }
+        return templateOptimizationLevel(servletConfig);
+    }
+
+    /**
+     * Return rhino optimization level for templates.  Same as
+     * {@link #optimizationLevel(ServletConfig)} except templates are
+     * still compiled to bytecode with continuations, since templates
+     * never suspend.
+     * @param servletConfig servlet config
+     * @return optimization level
+     */
+    public static int templateOptimizationLevel(ServletConfig servletConfig) {
+        String defaultValue = System.getProperty("debugjs") != null
+                ? "-1" : String.valueOf(ScriptCache.DEFAULT_OPTIMIZATION_LEVEL);
+        return Integer.parseInt(config(servletConfig, "optimizationLevel", defaultValue));
+    }
+
+    /**
+     * Create {@link ScriptCache} using {@link #optimizationLevel(ServletConfig)},
+     * and {@link #templateOptimizationLevel(ServletConfig)} for templates.
+     * Compiled classes are saved in dir from config 'scriptCacheDir',
+     * default is 'scripts' in servlet context tempdir.  Set to empty
+     * string to not save classes.
+     * @param servletConfig servlet config
+     * @return new script cache
+     */
+    public static ScriptCache scriptCache(ServletConfig servletConfig) {
+        File tempDir = (File) servletConfig.getServletContext().getAttribute(
+                "javax.servlet.context.tempdir");
+        String dir = config(servletConfig, "scriptCacheDir", tempDir != null
+                ? new File(tempDir, "scripts").getPath() : "");
+        return new ScriptCache(optimizationLevel(servletConfig),
+                templateOptimizationLevel(servletConfig), dir.length() > 0 ? new File(dir) : null);
+    }
+
+    /** @return cache of compiled scripts */
+    public ScriptCache getScriptCache() {
+        return scripts;
+    }
+
+    /**
+     * Set listener notified when files change after this object is sealed.
+     * @param changeListener listener
+     */
+    public void setChangeListener(ChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Set to true when files in '/app/' are watched by {@link FileWatcher}.
+     * Loaded scripts and templates are then used without checking
+     * timestamps, and files not already loaded are treated as not found.
+     * @param watched true if files are watched for changes
+     */
+    public void setWatched(boolean watched) {
+        this.watched = watched;
+    }
 
-        // update global with 'cirrus' and 'JSON'
-        put("cirrus", global, this);
-        put("JSON", global, new RhinoJSON());
+    /**
+     * Set to true if files are never checked for changes.  All cache
+     * lookups return what was loaded without checking timestamps or
+     * resources.  Sets javascript property 'cirrus.frozen'.
+     * Must be called before sealed.
+     * @param frozen true if frozen
+     * @throws IOException if error listing files in '/app/'
+     */
+    public void setFrozen(boolean frozen) throws IOException {
+        this.frozen = frozen;
+        if (frozen) {
+            frozenPaths = new HashSet<String>(sourcePaths());
+            defineProperty("frozen", Boolean.TRUE, ScriptableObject.READONLY);
+        }
+    }
 
-        // load '/app/cirrus.js'
-        load("/app/cirrus.js");
-        Context.exit();
+    /**
+     * Check timestamps of all loaded scripts and templates and
+     * notify {@link ChangeListener} of any that have changed
+     * or been deleted.  Used by {@link FileWatcher} when files
+     * cannot be watched.
+     */
+    public void checkModified() {
+        for (Map.Entry<String, CacheEntry> cached : cache.entrySet()) {
+            String path = cached.getKey();
+            if (!path.startsWith("/app/")) {
+                continue;
+            }
+            long lastModified = -1;
+            try {
+                lastModified = getResource(path).getLastModified();
+            } catch (IOException ioe) {} // deleted
+            if (lastModified != cached.getValue().lastModified) {
+                try {
+                    changed(path);
+                } catch (IOException ioe) {} // not possible, already in cache
+            }
+        }
     }
 
-    /** @return DB instance associated with current thread */
+    /**
+     * @return DB instance associated with current thread, which is the
+     * request's own thread with config 'virtualThreads'
+     */
     public DB getDB() {
         return db.get();
     }
 
+    /**
+     * Remove DB from current thread, used when request is suspended.
+     * Thread gets a new DB the next time it uses 'cirrus.db'.
+     * @return DB used by current thread
+     */
+    public DB detachDB() {
+        DB result = db.get();
+        db.remove();
+        return result;
+    }
+
+    /**
+     * Use DB for current thread, used when request is resumed.
+     * @param db DB from {@link #detachDB()}
+     */
+    public void attachDB(DB db) {
+        this.db.set(db);
+    }
+
     @Override
     public Object get(String name, Scriptable start) {
         if ("db".equals(name)) {
@@ -162,6 +486,277 @@ public class Cirrus extends NativeObject {
         return super.get(name, start);
     }
 
+    /**
+     * Seal cirrus, and deep seal controllers, models, 'publicPaths' and
+     * 'JST' with its templates and pages, so objects shared by request
+     * threads cannot change.  Once sealed, files are no longer loaded.
+     * Changes are passed to {@link ChangeListener} and files continue to
+     * use the version already loaded.
+     * <p>
+     * Global scope, cirrus and module exports are not sealed by the walk.
+     * The scope is sealed by {@link Generation}, and modules are loaded
+     * on first use so their exports are still being filled in.
+     */
+    @Override
+    public void sealObject() {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        seen.add(global);
+        seen.add(this);
+        for (Scriptable module : modules.values()) {
+            seen.add(module);
+            seen.add(module.get("exports", module));
+        }
+        deepSeal(get("controllers", this), seen);
+        deepSeal(get("models", this), seen);
+        deepSeal(get("publicPaths", this), seen);
+        deepSeal(global.get("JST", global), seen);
+        super.sealObject();
+    }
+
+    // seal object and all objects in its properties, but not prototypes,
+    // parent scopes, java packages or objects already sealed
+    private static void deepSeal(Object obj, Set<Object> seen) {
+        if (!(obj instanceof ScriptableObject) || obj instanceof NativeJavaPackage
+                || ((ScriptableObject) obj).isSealed() || !seen.add(obj)) {
+            return;
+        }
+        ScriptableObject sobj = (ScriptableObject) obj;
+        for (Object id : sobj.getAllIds()) {
+            Object value = id instanceof String ? sobj.get((String) id, sobj)
+                    : sobj.get(((Number) id).intValue(), sobj);
+            deepSeal(value, seen);
+        }
+        sobj.sealObject();
+    }
+
+    /**
+     * Load '/app/jst.js', all models and controllers, and all templates
+     * in '/app/views/', then compile routes for controllers.  Errors in
+     * individual models, controllers and templates are logged and the
+     * file is marked as failed so that it fails in the same way when used.
+     * @throws IOException if error loading '/app/jst.js'
+     */
+    public void loadAll() throws IOException {
+        load("/app/jst.js");
+        for (String path : scriptPaths()) {
+            try {
+                load(path);
+            } catch (Exception e) {
+                loadFailed(path, e);
+            }
+        }
+        for (String path : templatePaths()) {
+            String name = templateName(path);
+            try {
+                templates.put(name, loadjst(name, new HashSet<String>()));
+            } catch (Exception e) {
+                loadFailed(path, e);
+            }
+        }
+        router.compileAll((Scriptable) get("controllers", this));
+    }
+
+    /**
+     * Compile all models, controllers and templates concurrently using
+     * executor, without executing them.  {@link #loadAll()} will then
+     * find them already compiled.  Loads '/app/jst.js' first since it
+     * is used to parse templates.  Any errors are ignored here and
+     * reported by {@link #loadAll()}.
+     * @param executor executor used to compile
+     * @throws IOException if error loading '/app/jst.js'
+     * @throws InterruptedException if interrupted while waiting for compile
+     */
+    public void precompile(ExecutorService executor)
+            throws IOException, InterruptedException {
+
+        load("/app/jst.js");
+        List<String> paths = new ArrayList<String>(scriptPaths());
+        paths.addAll(templatePaths());
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (final String path : paths) {
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() {
+                    return CONTEXT_FACTORY.call(new ContextAction() {
+                        public Object run(Context cx) {
+                            try {
+                                URLConnection urlc = getResource(path);
+                                if (path.endsWith(".jst")) {
+                                    compilejst(cx, templateName(path), path,
+                                            urlc.getLastModified(), readFile(path, null));
+                                } else {
+                                    compile(cx, path, urlc);
+                                }
+                            } catch (Exception e) {
+                                log.debug("Error compiling " + path, e);
+                            }
+                            return null;
+                        }
+                    });
+                }
+            }));
+        }
+        for (Future<Object> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException ee) {
+                log.debug("Error compiling", ee);
+            }
+        }
+    }
+
+    /**
+     * @return all files in '/app/' and its subdirs, including modules
+     * which are not loaded by {@link #loadAll()}
+     * @throws IOException if error listing files
+     */
+    List<String> sourcePaths() throws IOException {
+        List<String> result = new ArrayList<String>();
+        findFiles("/app/", result);
+        return result;
+    }
+
+    // sorted files in dir and its subdirs
+    private void findFiles(String dir, List<String> result) throws IOException {
+        for (String path : new TreeSet<String>(getResourcePaths(dir))) {
+            if (path.endsWith("/")) {
+                findFiles(path, result);
+            } else {
+                result.add(path);
+            }
+        }
+    }
+
+    /**
+     * Write everything created by loading scripts to snapshot: global
+     * and cirrus properties, file cache, templates and modules.
+     * @param out stream which excludes 'cirrus' and standard objects
+     * @throws IOException if error writing
+     */
+    void writeSnapshot(ObjectOutputStream out) throws IOException {
+        out.writeObject(properties(global, "cirrus", "JSON", "h", "JST$name"));
+        out.writeObject(properties(this));
+        out.writeObject(new HashMap<String, CacheEntry>(cache));
+        out.writeObject(templates);
+        out.writeObject(new HashMap<String, Scriptable>(modules));
+    }
+
+    /**
+     * Read snapshot written by {@link #writeSnapshot(ObjectOutputStream)}.
+     * @param in stream which resolves 'cirrus' and standard objects
+     * @throws IOException if error reading
+     * @throws ClassNotFoundException if class in snapshot not found
+     */
+    @SuppressWarnings("unchecked")
+    void readSnapshot(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+
+        Map<String, Object> globals = (Map<String, Object>) in.readObject();
+        for (Map.Entry<String, Object> prop : globals.entrySet()) {
+            global.put(prop.getKey(), global, prop.getValue());
+        }
+        Map<String, Object> props = (Map<String, Object>) in.readObject();
+        for (Map.Entry<String, Object> prop : props.entrySet()) {
+            put(prop.getKey(), this, prop.getValue());
+        }
+        cache.putAll((Map<String, CacheEntry>) in.readObject());
+        templates.putAll((Map<String, NativeObject>) in.readObject());
+        modules.putAll((Map<String, Scriptable>) in.readObject());
+        router.compileAll((Scriptable) get("controllers", this));
+    }
+
+    // enumerable properties of object, except those named
+    private static Map<String, Object> properties(Scriptable obj, String... exclude) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (Object id : obj.getIds()) {
+            if (id instanceof String && !Arrays.asList(exclude).contains(id)) {
+                result.put((String) id, obj.get((String) id, obj));
+            }
+        }
+        return result;
+    }
+
+    // models then controllers in '/app/models/' and '/app/controllers/',
+    // controller modules are not included since they are loaded on first use
+    private List<String> scriptPaths() throws IOException {
+        List<String> result = new ArrayList<String>();
+        for (String dir : new String[] {"/app/models/", "/app/controllers/"}) {
+            String suffix = dir.equals("/app/models/") ? ".js" : "_controller.js";
+            for (String path : new TreeSet<String>(getResourcePaths(dir))) {
+                if (path.endsWith(suffix)) {
+                    result.add(path);
+                }
+            }
+        }
+        return result;
+    }
+
+    // all templates in '/app/views/'
+    private Set<String> templatePaths() throws IOException {
+        Set<String> result = new TreeSet<String>();
+        findTemplates("/app/views/", result);
+        return result;
+    }
+
+    // '/app/views/user/list.jst' => 'user.list'
+    private static String templateName(String path) {
+        return path.substring("/app/views/".length(),
+                path.length() - ".jst".length()).replace('/', '.');
+    }
+
+    // find all '.jst' files in dir and its subdirs
+    private void findTemplates(String dir, Set<String> result) throws IOException {
+        for (String path : getResourcePaths(dir)) {
+            if (path.endsWith("/")) {
+                findTemplates(path, result);
+            } else if (path.endsWith(".jst")) {
+                result.add(path);
+            }
+        }
+    }
+
+    // log error and remember so file is not reported as changed until fixed
+    private void loadFailed(String path, Exception e) {
+        log.error("Error loading " + path, e);
+        long lastModified = -1;
+        try {
+            lastModified = getResource(path).getLastModified();
+        } catch (IOException ignore) {} // error already logged
+        CacheEntry entry = new CacheEntry(lastModified, System.currentTimeMillis());
+        entry.error = "Error loading " + path + ": " + e.getMessage();
+        cache.put(path, entry);
+    }
+
+    /**
+     * Called when a file has changed but cannot be reloaded because this
+     * object is sealed.  Notifies {@link ChangeListener} and returns the
+     * cache entry for the file that is already loaded.
+     * @param path changed file
+     * @return cache entry, with error set if file not loaded
+     * @throws IOException if file not exists
+     */
+    private CacheEntry changed(String path) throws IOException {
+        long now = System.currentTimeMillis();
+        CacheEntry entry = cache.get(path);
+        if (entry == null) {
+            if (watched || frozen) {
+                // new files would have been loaded by now
+                throw new IOException("File not found: " + path);
+            }
+            // new file, throws IOException if not exists
+            getResource(path);
+            entry = new CacheEntry(-1, now);
+            entry.error = "File not loaded yet: " + path;
+            cache.put(path, entry);
+        }
+        // don't check file again until RELOAD_WAIT
+        entry.lastChecked = now;
+        log.info("file changed: " + path);
+        if (changeListener != null) {
+            changeListener.fileChanged(path);
+        }
+        return entry;
+    }
+
     /**
      * Similar to python dir() function.
      * @return list of properties of ob prototype chain
@@ -351,8 +946,11 @@ public class Cirrus extends NativeObject {
         String s = ScriptRuntime.toString(args[0]);
 
         Object writer = args.length > 1 ? args[1] : null;
-        if (writer instanceof NativeJavaObject) {
-            writer = ((NativeJavaObject)writer).unwrap();
+        if (writer instanceof TemplateWriter) {
+            ((TemplateWriter) writer).write(StringEscapeUtils.escapeHtml(s));
+            return "";
+        } else if (writer instanceof Wrapper) {
+            writer = ((Wrapper) writer).unwrap();
             if (writer instanceof Writer) {
                 StringEscapeUtils.escapeHtml((Writer) writer, s);
                 return "";
@@ -361,6 +959,146 @@ public class Cirrus extends NativeObject {
         return StringEscapeUtils.escapeHtml(s);
     }
 
+    /**
+     * Return {@link Env} for request, reused by each thread.
+     * Prototype is 'cirrus.Env.prototype'.
+     * @param args request and response
+     * @return env with timer started
+     */
+    public static Env env(Context cx, Scriptable thisObj,
+            Object[] args, Function funObj) {
+
+        Scriptable ctor = (Scriptable) ScriptableObject.getProperty(thisObj, "Env");
+        return Env.forThread(ScriptableObject.getTopLevelScope(thisObj),
+                (Scriptable) ScriptableObject.getProperty(ctor, "prototype"),
+                (HttpServletRequest) Context.jsToJava(args[0], HttpServletRequest.class),
+                (HttpServletResponse) Context.jsToJava(args[1], HttpServletResponse.class));
+    }
+
+    /**
+     * Suspend request until task is done.  Used by 'cirrus.suspend' and
+     * 'cirrus.sleep'.
+     * @param args task, either millis to sleep, or function or
+     * java.util.concurrent.Callable to run in another thread
+     * @return result of task, or {@link Suspension.Failure} if error
+     * @see Suspension
+     */
+    public static Object suspendRequest(Context cx, Scriptable thisObj,
+            Object[] args, Function funObj) {
+
+        return Suspension.suspend(cx, ScriptableObject.getTopLevelScope(thisObj),
+                args.length > 0 ? args[0] : null);
+    }
+
+    /**
+     * Return true if request is suspending.  Rhino runs 'finally' blocks
+     * when a request is suspended, which should skip any cleanup.
+     * @return true while request is suspending
+     * @see Suspension
+     */
+    public static boolean suspending(Context cx, Scriptable thisObj,
+            Object[] args, Function funObj) {
+
+        return Suspension.isSuspending(cx);
+    }
+
+    /**
+     * Release {@link Env} so that thread can reuse it.
+     * @param args env
+     */
+    public static void release(Context cx, Scriptable thisObj,
+            Object[] args, Function funObj) {
+
+        if (args.length > 0 && args[0] instanceof Env) {
+            ((Env) args[0]).release();
+        }
+    }
+
+    /**
+     * Put env.status, env.headers and env.body into servlet response.
+     * Result may be either String (for response body) or
+     * {status: Number, headers: Object, body: Array|String}, any values
+     * in result are merged with (and override) env values.
+     * @param args env and result of 'cirrus.forward'
+     * @throws IOException if error writing body
+     */
+    public static void respond(Context cx, Scriptable thisObj,
+            Object[] args, Function funObj) throws IOException {
+
+        Scriptable env = (Scriptable) args[0];
+        Object result = args.length > 1 ? args[1] : null;
+        HttpServletResponse response = (HttpServletResponse) Context.jsToJava(
+                ScriptableObject.getProperty(env, "response"), HttpServletResponse.class);
+
+        // don't create env status, headers or body if not used
+        Object status = envValue(env, "status");
+        Object headers = envValue(env, "headers");
+        Object body = envValue(env, "body");
+        Object resultBody = null;
+        Object resultHeaders = null;
+        if (result instanceof CharSequence) {
+            resultBody = result;
+        } else if (result instanceof Scriptable) {
+            Scriptable res = (Scriptable) result;
+            Object resultStatus = ScriptableObject.getProperty(res, "status");
+            if (resultStatus != NOT_FOUND && ScriptRuntime.toBoolean(resultStatus)) {
+                status = resultStatus;
+            }
+            resultHeaders = ScriptableObject.getProperty(res, "headers");
+            resultBody = ScriptableObject.getProperty(res, "body");
+        }
+
+        if (status != NOT_FOUND && ScriptRuntime.toBoolean(status)) {
+            response.setStatus(ScriptRuntime.toInt32(status));
+        }
+        // result headers override env headers with same name
+        Map<String, Object> allHeaders = new LinkedHashMap<String, Object>();
+        for (Object h : new Object[] {headers, resultHeaders}) {
+            if (h instanceof Scriptable) {
+                for (Object id : ((Scriptable) h).getIds()) {
+                    String name = String.valueOf(id);
+                    allHeaders.put(name, ScriptableObject.getProperty((Scriptable) h, name));
+                }
+            }
+        }
+        for (Map.Entry<String, Object> header : allHeaders.entrySet()) {
+            response.addHeader(header.getKey(), ScriptRuntime.toString(header.getValue()));
+        }
+        Writer writer = null;
+        for (Object b : new Object[] {body, resultBody}) {
+            if (b instanceof CharSequence) {
+                writer = writer != null ? writer : bodyWriter(response);
+                writer.write(b.toString());
+            } else if (b instanceof Scriptable) {
+                Scriptable parts = (Scriptable) b;
+                long length = ScriptRuntime.toUint32(ScriptableObject.getProperty(parts, "length"));
+                for (int i = 0; i < length; i++) {
+                    writer = writer != null ? writer : bodyWriter(response);
+                    writer.write(ScriptRuntime.toString(ScriptableObject.getProperty(parts, i)));
+                }
+            }
+        }
+        if (writer instanceof OutputStreamWriter) {
+            writer.flush();
+        }
+    }
+
+    // response writer, or stream if template already rendered to stream
+    private static Writer bodyWriter(HttpServletResponse response) throws IOException {
+        try {
+            return response.getWriter();
+        } catch (IllegalStateException ise) {
+            return new OutputStreamWriter(response.getOutputStream(),
+                    response.getCharacterEncoding());
+        }
+    }
+
+    // env property, not created if not yet used
+    private static Object envValue(Scriptable env, String name) {
+        return env instanceof Env ? ((Env) env).peek(name)
+                : ScriptableObject.getProperty(env, name);
+    }
+
     /**
      * Load specified jst file, and return compiled template
      * @param name name of template &lt;controller.action>  e.g. 'user.list'
@@ -368,16 +1106,43 @@ public class Cirrus extends NativeObject {
      * @throws IOException if template not found or other error
      */
     public NativeObject jst(String name) throws IOException {
+        // templates never change once sealed
+        if (isSealed()) {
+            NativeObject template = templates.get(name);
+            if (template != null) {
+                return template;
+            }
+        }
         // (re)load '/app/jst.js'
         load("/app/jst.js");
         return loadjst(name, new HashSet<String>());
     }
 
+    /**
+     * Return Context associated with current thread.  Scripts and
+     * templates are only loaded from javascript, or while initialising,
+     * so there is no need to enter a new Context.  Contexts from
+     * {@link #CONTEXT_FACTORY} are already configured, others (e.g. when
+     * called from rhino shell) are updated to use {@link #WRAP_FACTORY}.
+     * @return current Context
+     * @throws IllegalStateException if no Context for current thread
+     */
+    private static Context currentContext() {
+        Context cx = Context.getCurrentContext();
+        if (cx == null) {
+            throw new IllegalStateException("No Context associated with current thread");
+        }
+        if (cx.getWrapFactory() != WRAP_FACTORY) {
+            cx.setWrapFactory(WRAP_FACTORY);
+        }
+        return cx;
+    }
+
     /** loads template and any of its dependency chain */
-    private NativeObject loadjst(String name, Set<String> deps)throws IOException {
+    private NativeObject loadjst(String name, Set<String> deps) throws IOException {
 
         // lookup in cache[name] and in JST.templates[name]
-        String path = "/app/views/" + name.replace('.', '/') + ".jst";
+        String path = jstPath(name);
         CacheEntry cacheResult = cacheLookup(path);
 
         ScriptableObject jstObj = (ScriptableObject) global.get("JST", global);
@@ -385,15 +1150,31 @@ public class Cirrus extends NativeObject {
         Object template = templates.get(name, templates);
 
         if (cacheResult != null && template != ScriptableObject.NOT_FOUND) {
+            // flatten again if any template used by page changed
+            if (!isSealed() && pageChanged(name, deps)) {
+                loadPage(currentContext(), name);
+            }
             return (NativeObject) template;  // found in cache
         }
+        if (isSealed()) {
+            // sealed, use template already loaded
+            if (cacheResult == null) {
+                cacheResult = changed(path);
+            }
+            if (template != ScriptableObject.NOT_FOUND) {
+                return (NativeObject) template;
+            }
+            throw new IOException(cacheResult.error != null
+                    ? cacheResult.error : "Template not loaded: " + name);
+        }
 
         // not found or file changed, must compile and execute
         log.info("loadjst: " + path);
+        URLConnection urlc = getResource(path);
+        long lastModified = urlc.getLastModified();
         String jstFile = readFile(path, null);
         // if prototype or render/partial declared, then try to load deps
-        Pattern p = Pattern.compile("\\{[ \\t]*(prototype|render)[ \\t]+([^\\s{}]+)[ \\t]*\\}");
-        Matcher m = p.matcher(jstFile);
+        Matcher m = JST_DEPS.matcher(jstFile);
         while (m.find()) {
             String dep = m.group(2);
             if (!deps.contains(dep)) {
@@ -405,84 +1186,456 @@ public class Cirrus extends NativeObject {
             }
         }
 
-        // call JST.parse(<jst file contents>)
-        Function parse = (Function) jstObj.get("parse", jstObj);
-        Context cx = Context.enter();
+        Context cx = currentContext();
         try {
-            log.info("JST.parse(" + name + ".jst)");
-            String source = (String) parse.call(cx, global, jstObj, new Object[] {name, jstFile});
-            File tempDir = (File) servletConfig.getServletContext().getAttribute("javax.servlet.context.tempdir");
-            String sourceName = "views/" + name + ".js";
-            if (tempDir != null) {
-                File jstDir = new File(tempDir, "jst");
-                jstDir.mkdir();
-                File compiledJstFile = new File(jstDir, name + ".js");
-                sourceName = compiledJstFile.toURI().toString();
-                log.info("Writing compiled jst file to tmp file: " + compiledJstFile);
-                FileOutputStream fos = new FileOutputStream(compiledJstFile);
-                try {
-                    fos.write(source.getBytes());
-                } finally {
-                    fos.close();
-                }
-            }
-            cx.evaluateString(global, source, sourceName, 1, null);
-            URLConnection urlc = getResource(path);
+            Script script = compilejst(cx, name, path, lastModified, jstFile);
+            script.exec(cx, global);
 
-            CacheEntry entry = new CacheEntry(urlc.getLastModified(),
+            CacheEntry entry = new CacheEntry(lastModified,
                     System.currentTimeMillis());
             cache.put(path, entry);
         } catch (JavaScriptException jse) {
-                IOException ioe = new IOException("Error loading views/" + name + ".js: " + jse.getMessage());
-                ioe.initCause(jse);
-                throw ioe;
-        } finally {
-            Context.exit();
+            IOException ioe = new IOException("Error loading views/" + name + ".js: " + jse.getMessage());
+            ioe.initCause(jse);
+            throw ioe;
         }
+        loadPage(cx, name);
 
         // return 'JST.templates[name]'
         return (NativeObject) templates.get(name, templates);
     }
 
+    private static String jstPath(String name) {
+        return "/app/views/" + name.replace('.', '/') + ".jst";
+    }
+
+    // reloads changed templates used by page, true if page must be flattened again
+    private boolean pageChanged(String name, Set<String> deps) throws IOException {
+        Map<String, Long> used = pageDeps.get(name);
+        if (used == null) {
+            return false;
+        }
+        deps.add(name);
+        boolean changed = false;
+        for (Map.Entry<String, Long> dep : used.entrySet()) {
+            if (deps.add(dep.getKey())) {
+                loadjst(dep.getKey(), deps);
+            }
+            CacheEntry entry = cache.get(jstPath(dep.getKey()));
+            changed |= entry == null || entry.lastModified != dep.getValue();
+        }
+        return changed;
+    }
+
+    /**
+     * Flatten template, its prototypes and partials into
+     * 'JST.pages[name]', see {@link TemplatePage}.  Compiled and cached
+     * like templates, reused only while the contents of all the jst files
+     * used are unchanged.  If there is any error, the page is removed and
+     * the template is rendered through its prototypes.
+     */
+    private void loadPage(Context cx, final String name) {
+        final ScriptableObject jstObj = (ScriptableObject) global.get("JST", global);
+        Scriptable pages = (Scriptable) jstObj.get("pages", jstObj);
+        pageDeps.remove(name);
+        try {
+            // template and all templates it uses, found the same way as loadjst
+            final Map<String, String> jstFiles = new TreeMap<String, String>();
+            Map<String, Long> used = new TreeMap<String, Long>();
+            List<String> todo = new ArrayList<String>(Arrays.asList(name));
+            while (!todo.isEmpty()) {
+                String dep = todo.remove(todo.size() - 1);
+                if (jstFiles.containsKey(dep)) {
+                    continue;
+                }
+                // not yet loaded if dependencies are circular
+                CacheEntry entry = cache.get(jstPath(dep));
+                String jstFile = readFile(jstPath(dep), null);
+                jstFiles.put(dep, jstFile);
+                used.put(dep, entry != null ? entry.lastModified
+                        : getResource(jstPath(dep)).getLastModified());
+                for (Matcher m = JST_DEPS.matcher(jstFile); m.find(); ) {
+                    todo.add(m.group(2));
+                }
+            }
+            long lastModified = 0;
+            StringBuilder contents = new StringBuilder();
+            for (Map.Entry<String, String> jstFile : jstFiles.entrySet()) {
+                lastModified = Math.max(lastModified, used.get(jstFile.getKey()));
+                contents.append(jstFile.getKey()).append('\n').append(jstFile.getValue()).append('\0');
+            }
+
+            final File compiledJstFile = compiledJstFile(name + ".page");
+            String sourceName = compiledJstFile != null
+                    ? compiledJstFile.toURI().toString() : "views/" + name + ".page.js";
+            final Function parse = (Function) jstObj.get("parse", jstObj);
+            Script script = scripts.compile(cx, jstPath(name) + "#page", lastModified,
+                    contents.toString(), sourceName, new ScriptCache.Generator() {
+                public String getVersion() {
+                    String jstHash = scripts.getHash("/app/jst.js");
+                    return jstHash == null ? null : jstHash + "/" + TemplateScope.VERSION
+                            + "/" + TemplateText.VERSION + "/" + TemplatePage.VERSION;
+                }
+                public String generate(Context cx, String contents) {
+                    Map<String, String> sources = new HashMap<String, String>();
+                    for (Map.Entry<String, String> jstFile : jstFiles.entrySet()) {
+                        sources.put(jstFile.getKey(), (String) parse.call(cx, global, jstObj,
+                                new Object[] {jstFile.getKey(), jstFile.getValue()}));
+                    }
+                    String source = TemplatePage.flatten(cx, name, sources);
+                    if (source == null) {
+                        log.debug("template " + name + " has no render function");
+                        return "delete JST.pages[\"" + name + "\"];";
+                    }
+                    source = TemplateText.extract(cx, TemplateScope.bind(cx, source, global));
+                    if (compiledJstFile != null) {
+                        writeCompiledJst(compiledJstFile, source);
+                    }
+                    return source;
+                }
+            });
+            script.exec(cx, global);
+            pageDeps.put(name, used);
+        } catch (Exception e) {
+            log.warn("Error flattening template " + name + ", using prototypes", e);
+            pages.delete(name);
+        }
+    }
+
+    // file in servlet temp dir where generated javascript is written for debugging
+    private File compiledJstFile(String name) {
+        File tempDir = (File) servletConfig.getServletContext().getAttribute("javax.servlet.context.tempdir");
+        return tempDir != null ? new File(new File(tempDir, "jst"), name + ".js") : null;
+    }
+
+    /**
+     * Return compiled template, compiles only if jst file changed.
+     * JST.parse is not called if compiled classes are in disk cache.
+     */
+    private Script compilejst(Context cx, final String name, String path,
+            long lastModified, String jstFile) {
+
+        // use compiled script if jst file not changed
+        Script script = scripts.get(path, lastModified);
+        if (script != null) {
+            return script;
+        }
+        final File compiledJstFile = compiledJstFile(name);
+        String sourceName = compiledJstFile != null
+                ? compiledJstFile.toURI().toString() : "views/" + name + ".js";
+        final ScriptableObject jstObj = (ScriptableObject) global.get("JST", global);
+        final Function parse = (Function) jstObj.get("parse", jstObj);
+
+        // parse only if not found in disk cache
+        return scripts.compile(cx, path, lastModified, jstFile, sourceName,
+                new ScriptCache.Generator() {
+            public String getVersion() {
+                // templates must be regenerated if '/app/jst.js' changes,
+                // not saved to disk if its hash is not known
+                String jstHash = scripts.getHash("/app/jst.js");
+                return jstHash == null ? null : jstHash + "/" + TemplateScope.VERSION
+                        + "/" + TemplateText.VERSION;
+            }
+            public String generate(Context cx, String contents) {
+                // call JST.parse(<jst file contents>)
+                log.info("JST.parse(" + name + ".jst)");
+                String source = (String) parse.call(cx, global, jstObj, new Object[] {name, contents});
+                String bound = TemplateScope.bind(cx, source, global);
+                if (bound == source) {
+                    log.debug("template " + name + " needs 'with (cx)'");
+                }
+                source = TemplateText.extract(cx, bound);
+                if (compiledJstFile != null) {
+                    writeCompiledJst(compiledJstFile, source);
+                }
+                return source;
+            }
+        });
+    }
+
+    // return compiled script, compiles only if file changed
+    private Script compile(Context cx, String path, URLConnection urlc) throws IOException {
+        long lastModified = urlc.getLastModified();
+        Script script = scripts.get(path, lastModified);
+        if (script == null) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            readFileIntoStream(path, baos);
+            script = scripts.compile(cx, path, lastModified,
+                    baos.toString(), urlc.getURL().toString());
+            // templates generated by previous '/app/jst.js' must be regenerated
+            if ("/app/jst.js".equals(path)) {
+                scripts.invalidate("/app/views/");
+            }
+        }
+        return script;
+    }
+
+    // write generated template javascript to temp file for debugging
+    private static void writeCompiledJst(File compiledJstFile, String source) {
+        log.info("Writing compiled jst file to tmp file: " + compiledJstFile);
+        compiledJstFile.getParentFile().mkdir();
+        try {
+            FileOutputStream fos = new FileOutputStream(compiledJstFile);
+            try {
+                fos.write(source.getBytes());
+            } finally {
+                fos.close();
+            }
+        } catch (IOException ioe) {
+            log.warn("Error writing compiled jst file: " + compiledJstFile, ioe);
+        }
+    }
+
     /**
      * Load javascript file into global scope.  File will only be executed
      * if it doesn't already exist, or if modified since it was last loaded.
+     * Once sealed, files are never executed and changes are passed to
+     * {@link ChangeListener}.
+     * Must be called with a Context associated with the current thread.
      * @param path file to load
      * @return true if file was (re)loaded, false if no change
-     * @throws IOException if error reading file
+     * @throws IOException if error reading file, or file failed to load
      */
     public boolean load(String path) throws IOException {
         // if script in cache, no need to evaluate again
         CacheEntry entry = cacheLookup(path);
+        if (entry == null && isSealed()) {
+            entry = changed(path);
+        }
         if (entry != null) {
+            if (entry.error != null) {
+                throw new IOException(entry.error);
+            }
             return false;
         }
 
-        // evaluate script
-        Context cx = Context.enter();
-        // ensure we are using our WrapFactory
-        cx.setWrapFactory(Cirrus.WRAP_FACTORY);
+        // evaluate script, only compile if not already compiled
+        Context cx = currentContext();
+        URLConnection urlc = getResource(path);
+        Script script = compile(cx, path, urlc);
+        log.info("loading: " + path);
+        script.exec(cx, global);
+        entry = new CacheEntry(urlc.getLastModified(), System.currentTimeMillis());
+        cache.put(path, entry);
+        return true;
+    }
+
+    /**
+     * Return exports of CommonJS-style module.  Module is loaded on
+     * first use in its own scope which has 'exports', 'module' and
+     * 'require' defined, and global as prototype.  Modules are cached by
+     * resolved path so each is only executed once.  Threads requiring a
+     * module being loaded by another thread wait only for that module.
+     * A module required while it is still loading (circular dependency)
+     * returns its exports so far.  Unless sealed, modified modules are reloaded.
+     * Must be called with a Context associated with the current thread.
+     * @param id module id relative to '/app/', e.g. 'lib/util'
+     * for '/app/lib/util.js'
+     * @return module exports
+     * @throws IOException if module not found or failed to load
+     */
+    public Object require(String id) throws IOException {
+        return requireModule(resolveModule("/app/", id));
+    }
+
+    /**
+     * Set deadline for current request, replacing default from config
+     * 'requestTimeout'.  Used by 'cirrus.forward' for routes with
+     * 'timeout'.
+     * @param timeoutMillis millis allowed since request started, or 0
+     * for no deadline
+     * @see Deadline
+     */
+    public void deadline(double timeoutMillis) {
+        Deadline.current().setTimeout((long) timeoutMillis);
+    }
+
+    /**
+     * Admit request before it takes a DB connection.  Used by
+     * 'cirrus.service' with 'concurrency' and 'queue' from route.
+     * @param controller controller name
+     * @param concurrency max requests for controller's bulkhead, 0 to
+     * use shared limit
+     * @param queue max requests waiting for bulkhead
+     * @return permit to release when request ends, or null if rejected
+     * @see Admission
+     */
+    public Admission.Permit admit(String controller, int concurrency, int queue) {
+        return ADMISSION.admit(controller, concurrency, queue);
+    }
+
+    /**
+     * Find route for request using {@link Router}.
+     * Must be called with a Context associated with the current thread.
+     * @param method HTTP method, e.g. 'GET'
+     * @param path request path, e.g. '/user/detail/1'
+     * @return route with 'controller', 'action', 'args' and if found
+     * 'ctlr' and 'handler'
+     * @see Router#route(String, String, Scriptable)
+     */
+    public Scriptable route(String method, String path) {
+        Object publicPaths = get("publicPaths", this);
+        return router.route(method, path, publicPaths instanceof Scriptable
+                ? (Scriptable) publicPaths : null);
+    }
+
+    /**
+     * Return controller for name.  Uses 'cirrus.controllers[name]' set by
+     * '/app/controllers/&lt;name>_controller.js', else exports of module
+     * '/app/controllers/&lt;name>.js' which is loaded on first use.
+     * Must be called with a Context associated with the current thread.
+     * @param name controller name, e.g. 'user'
+     * @return controller or null if not found
+     * @throws IOException if controller not found or failed to load
+     */
+    public Object controller(String name) throws IOException {
+        String modulePath = "/app/controllers/" + name + ".js";
+        if (!modules.containsKey(modulePath)) {
+            Scriptable controllers = (Scriptable) get("controllers", this);
+            // all controllers already loaded when frozen, load only reports error
+            if (!frozen || !controllers.has(name, controllers)) {
+                String path = "/app/controllers/" + name + "_controller.js";
+                try {
+                    load(path);
+                } catch (IOException ioe) {
+                    if (cache.containsKey(path) || !exists(modulePath)) {
+                        throw ioe;
+                    }
+                    return requireModule(modulePath);
+                }
+            }
+            Object ctlr = controllers.get(name, controllers);
+            return ctlr == NOT_FOUND ? null : ctlr;
+        }
+        return requireModule(modulePath);
+    }
+
+    // module exports, loads module if not loaded or changed
+    private Object requireModule(String path) throws IOException {
+        Scriptable module = modules.get(path);
+        if (module == null || !isSealed() && cacheLookup(path) == null) {
+            module = loadModule(path);
+        }
+        return module.get("exports", module);
+    }
 
+    // single-flight, first thread executes module and others wait for it
+    private Scriptable loadModule(final String path) throws IOException {
+        final ModuleLoad load = new ModuleLoad();
+        load.task = new FutureTask<Scriptable>(new Callable<Scriptable>() {
+            public Scriptable call() throws IOException {
+                // another thread may have loaded module before we started
+                Scriptable module = modules.get(path);
+                if (module != null && (isSealed() || cacheLookup(path) != null)) {
+                    return module;
+                }
+                return execModule(path, load);
+            }
+        });
+        ModuleLoad existing = loadingModules.putIfAbsent(path, load);
+        if (existing != null) {
+            return awaitModule(existing);
+        }
         try {
-            URLConnection urlc = getResource(path);
-            Reader reader = new BufferedReader(new InputStreamReader(
-                    urlc.getInputStream()));
-            try {
-                log.info("loading: " + path);
-                cx.evaluateReader(global, reader,
-                        urlc.getURL().toString(), 1, null);
-                entry = new CacheEntry(urlc.getLastModified(),
-                        System.currentTimeMillis());
-                cache.put(path, entry);
-            } finally {
-                reader.close();
+            load.task.run();
+        } finally {
+            loadingModules.remove(path, load);
+        }
+        return load.get();
+    }
+
+    // wait for module loading in another thread, or return exports so far
+    // if circular dependency, i.e. that thread is waiting for this one
+    private Scriptable awaitModule(ModuleLoad load) throws IOException {
+        Thread current = Thread.currentThread();
+        synchronized (waitingModules) {
+            for (ModuleLoad l = load; l != null; l = waitingModules.get(l.thread)) {
+                if (l.thread == current) {
+                    return load.module;
+                }
             }
-            return true;
+            waitingModules.put(current, load);
+        }
+        try {
+            return load.get();
         } finally {
-            Context.exit();
+            synchronized (waitingModules) {
+                waitingModules.remove(current);
+            }
+        }
+    }
+
+    // execute module in its own scope
+    private Scriptable execModule(String path, ModuleLoad load) throws IOException {
+        Context cx = currentContext();
+        URLConnection urlc = getResource(path);
+        Script script = compile(cx, path, urlc);
+        log.info("loading module: " + path);
+        Scriptable scope = cx.newObject(global);
+        scope.setPrototype(global);
+        scope.setParentScope(null);
+        Scriptable module = cx.newObject(global);
+        Scriptable exports = cx.newObject(global);
+        module.put("id", module, path);
+        module.put("exports", module, exports);
+        scope.put("module", scope, module);
+        scope.put("exports", scope, exports);
+        scope.put("require", scope, new Require(this,
+                path.substring(0, path.lastIndexOf('/') + 1)));
+        load.module = module;
+        script.exec(cx, scope);
+        cache.put(path, new CacheEntry(urlc.getLastModified(), System.currentTimeMillis()));
+        modules.put(path, module);
+        return module;
+    }
+
+    // true if file exists, or existed when frozen
+    private boolean exists(String path) {
+        if (frozen) {
+            return frozenPaths.contains(path);
+        }
+        try {
+            getResource(path);
+            return true;
+        } catch (IOException ioe) {
+            return false;
         }
     }
 
+    /**
+     * Resolve module id to path.  Ids starting with './' or '../' are
+     * relative to dir, others are relative to '/app/'.  Adds '.js'.
+     * @param dir dir of requiring module, e.g. '/app/lib/'
+     * @param id module id, e.g. './util' or 'lib/util'
+     * @return path, e.g. '/app/lib/util.js'
+     * @throws IOException if id resolves outside '/app/'
+     */
+    static String resolveModule(String dir, String id) throws IOException {
+        if (!id.startsWith("./") && !id.startsWith("../")) {
+            dir = "/app/";
+        }
+        List<String> parts = new ArrayList<String>(Arrays.asList(
+                dir.substring(1, dir.length() - 1).split("/")));
+        for (String part : id.split("/")) {
+            if ("..".equals(part)) {
+                if (parts.size() <= 1) {
+                    throw new IOException("Invalid module id: " + id);
+                }
+                parts.remove(parts.size() - 1);
+            } else if (part.length() > 0 && !".".equals(part)) {
+                parts.add(part);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            sb.append('/').append(part);
+        }
+        if (!id.endsWith(".js")) {
+            sb.append(".js");
+        }
+        return sb.toString();
+    }
+
     /**
      * Read file.  2nd arg is optional stream for reading into.
      * If not supplied return string result.
@@ -505,7 +1658,7 @@ public class Cirrus extends NativeObject {
         }
     }
 
-    private void readFileIntoStream(String path, OutputStream outs) throws IOException {
+    void readFileIntoStream(String path, OutputStream outs) throws IOException {
         InputStream ins = getResource(path).getInputStream();
         try {
             byte[] buf = new byte[4096];
@@ -626,6 +1779,13 @@ public class Cirrus extends NativeObject {
      */
     private CacheEntry cacheLookup(String path) throws IOException {
         CacheEntry entry = cache.get(path);
+        if (frozen) {
+            return entry;
+        }
+        if (watched && path.startsWith("/app/")) {
+            // changes detected by FileWatcher, no need to check
+            return entry;
+        }
         if (entry != null) {
             long now = System.currentTimeMillis();
             if (entry.lastChecked + RELOAD_WAIT > now) {
@@ -644,9 +1804,79 @@ public class Cirrus extends NativeObject {
         return null;
     }
 
-    static class CacheEntry {
+    /** 'require' function in module scope, resolves ids relative to module. */
+    static class Require extends BaseFunction {
+        private static final long serialVersionUID = 0x7E2D4A91C5B3F608L;
+        private Cirrus cirrus;
+        private String dir;
+
+        Require(Cirrus cirrus, String dir) {
+            this.cirrus = cirrus;
+            this.dir = dir;
+            ScriptRuntime.setFunctionProtoAndParent(this, cirrus.global);
+        }
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj,
+                Object[] args) {
+            if (args.length == 0) {
+                throw ScriptRuntime.typeError("require: module id required");
+            }
+            try {
+                return cirrus.requireModule(resolveModule(dir,
+                        ScriptRuntime.toString(args[0])));
+            } catch (IOException ioe) {
+                throw Context.throwAsScriptRuntimeEx(ioe);
+            }
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "require";
+        }
+    }
+
+    // module being loaded by a thread
+    static class ModuleLoad {
+        FutureTask<Scriptable> task;
+        Thread thread = Thread.currentThread();
+        // set before module executes, returned for circular dependencies
+        volatile Scriptable module;
+
+        // wait for load, rethrow any load error
+        Scriptable get() throws IOException {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return task.get();
+                    } catch (InterruptedException ie) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    static class CacheEntry implements Serializable {
+        private static final long serialVersionUID = 0x5A3E1B7C9D2F4086L;
         long lastModified;
-        long lastChecked;
+        volatile long lastChecked;
+        String error;
         CacheEntry(long lastModified, long lastcheck) {
             this.lastModified = lastModified;
             this.lastChecked = lastcheck;
@@ -0,0 +1,109 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+/**
+ * ContextFactory for cirrus.  Contexts are configured once with
+ * {@link Cirrus#WRAP_FACTORY}, optimization level and language version,
+ * and each thread reuses its own Context rather than creating a new
+ * one every time it enters.
+ * <p>
+ * Turns on dynamic scope so that functions defined in the shared global
+ * scope resolve top-level names via the per-request scope passed to
+ * {@link org.mozilla.javascript.Function#call}.  Any top-level variables
+ * created while servicing a request are put into the request scope
+ * rather than the shared scope.
+ * <p>
+ * If an instruction observer threshold is set, scripts check the
+ * current thread's {@link Deadline} every time that many instructions
+ * have run, so a runaway script cannot hold a thread forever.
+ * @author Joel Hockey
+ */
+public class CirrusContextFactory extends ContextFactory {
+    /** Instructions between deadline checks when deadlines are used. */
+    public static final int DEADLINE_CHECK_INSTRUCTIONS = 10000;
+
+    private int optimizationLevel = ScriptCache.DEFAULT_OPTIMIZATION_LEVEL;
+    private int instructionObserverThreshold;
+
+    // configured context reused by each thread
+    private ThreadLocal<Context> contexts = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return newContext();
+        }
+    };
+
+    /**
+     * Set optimization level used by contexts.  Must be called before
+     * any contexts are created.
+     * @param optimizationLevel rhino optimization level -1 to 9
+     */
+    public void setOptimizationLevel(int optimizationLevel) {
+        Context.checkOptimizationLevel(optimizationLevel);
+        this.optimizationLevel = optimizationLevel;
+    }
+
+    /** @return optimization level used by contexts */
+    public int getOptimizationLevel() {
+        return optimizationLevel;
+    }
+
+    /**
+     * Set number of instructions between deadline checks.  Must be
+     * called before any contexts are created or scripts compiled.
+     * @param threshold instructions between checks, or 0 for no checks
+     */
+    public void setInstructionObserverThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid threshold: " + threshold);
+        }
+        this.instructionObserverThreshold = threshold;
+    }
+
+    /** @return instructions between deadline checks, or 0 for no checks */
+    public int getInstructionObserverThreshold() {
+        return instructionObserverThreshold;
+    }
+
+    /**
+     * Return Context for current thread.  Only called when
+     * no Context is associated with current thread, so the thread's
+     * Context is never in use when it is returned.
+     */
+    @Override
+    protected Context makeContext() {
+        return contexts.get();
+    }
+
+    // create and configure new context
+    private Context newContext() {
+        Context cx = super.makeContext();
+        cx.setWrapFactory(Cirrus.WRAP_FACTORY);
+        cx.setOptimizationLevel(optimizationLevel);
+        cx.setLanguageVersion(Context.VERSION_1_7);
+        // compiled scripts only count instructions if threshold set
+        cx.setInstructionObserverThreshold(instructionObserverThreshold);
+        return cx;
+    }
+
+    /** Check deadline of current request. */
+    @Override
+    protected void observeInstructionCount(Context cx, int instructionCount) {
+        Deadline.current().check();
+    }
+
+    @Override
+    protected boolean hasFeature(Context cx, int featureIndex) {
+        switch (featureIndex) {
+        case Context.FEATURE_DYNAMIC_SCOPE:
+        case Context.FEATURE_LOCATION_INFORMATION_IN_ERROR:
+            return true;
+        default:
+            return super.hasFeature(cx, featureIndex);
+        }
+    }
+}
@@ -3,18 +3,27 @@
 package com.joelhockey.cirrus;
 
 import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mozilla.javascript.Context;
-import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.ContextAction;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.tools.debugger.Main;
 
@@ -28,8 +37,18 @@ public class CirrusServlet extends HttpServlet {
     private static final Log log = LogFactory.getLog(CirrusServlet.class);
 
     private static boolean STATIC_INIT = false;
-    public static ScriptableObject GLOBAL_SCOPE;
-    private static Cirrus CIRRUS;
+    /** Builds and holds current generation of shared scope and scripts. */
+    private static Reloader RELOADER;
+    /** Default millis allowed for each request, 0 for no deadline. */
+    private static long REQUEST_TIMEOUT;
+    /** True if requests can be suspended, see {@link Suspension}. */
+    private static boolean CONTINUATIONS;
+    /** True if container should dispatch on virtual threads. */
+    private static boolean VIRTUAL_THREADS;
+    /** True once warned that container uses platform threads. */
+    private static volatile boolean PLATFORM_WARNED;
+    /** Runs requests on bounded pool, null unless 'asyncThreads'. */
+    private static Dispatcher DISPATCHER;
 
     static {
 
@@ -40,9 +59,16 @@ public class CirrusServlet extends HttpServlet {
         staticInit();
     }
 
+    @Override
+    public void destroy() {
+        staticDestroy();
+    }
+
     /**
      * Perform init actions once per classloader.
-     * Ensure DB is at correct version, if not run migrations.
+     * Warm up using a thread pool.  All scripts and templates are compiled
+     * concurrently while DB is checked and migrated if not at correct
+     * version.  Returns once the first generation is fully loaded.
      */
     private synchronized void staticInit() throws ServletException {
         if (STATIC_INIT) return;
@@ -51,64 +77,227 @@ public class CirrusServlet extends HttpServlet {
         if (System.getProperty("debugjs") != null) {
             // try { UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); } catch (Exception e) {}
             Main main = new Main("Cirrus Debug");
-            main.attachTo(ContextFactory.getGlobal());
+            main.attachTo(Cirrus.CONTEXT_FACTORY);
             main.pack();
             main.setSize(960, 720);
             main.setVisible(true);
         }
 
-        Context cx = Context.enter();
-        cx.setWrapFactory(Cirrus.WRAP_FACTORY); // use cirrus WrapFactory
+        // configure contexts before first one is created
+        Cirrus.CONTEXT_FACTORY.setOptimizationLevel(
+                Cirrus.optimizationLevel(getServletConfig()));
+        final ServletConfig config = getServletConfig();
+        REQUEST_TIMEOUT = Long.parseLong(Cirrus.config(config, "requestTimeout", "0"));
+        if (REQUEST_TIMEOUT > 0) {
+            Cirrus.CONTEXT_FACTORY.setInstructionObserverThreshold(
+                    CirrusContextFactory.DEADLINE_CHECK_INSTRUCTIONS);
+        }
+        int limit = Integer.parseInt(Cirrus.config(config, "concurrencyLimit", "0"));
+        Cirrus.ADMISSION.setLimit(limit, Integer.parseInt(Cirrus.config(
+                config, "maxConcurrencyLimit", String.valueOf(limit * 4))));
+        CONTINUATIONS = Cirrus.continuations(config);
+        if (CONTINUATIONS) {
+            Suspension.start();
+        }
+        int asyncThreads = Integer.parseInt(Cirrus.config(config, "asyncThreads", "0"));
+        if (asyncThreads > 0) {
+            DISPATCHER = new Dispatcher(asyncThreads,
+                    Integer.parseInt(Cirrus.config(config, "asyncQueue", "100")),
+                    REQUEST_TIMEOUT > 0 ? REQUEST_TIMEOUT + 2 * Deadline.GRACE_MILLIS
+                            : Suspension.MAX_SUSPEND);
+        } else if (Cirrus.virtualThreads(config)) {
+            VIRTUAL_THREADS = true;
+        } else if (Boolean.parseBoolean(Cirrus.config(config, "virtualThreads", "false"))) {
+            log.warn("virtual threads not available, requests use servlet threads");
+        }
+        Timer timer = new Timer();
+        timer.start();
+        ExecutorService warmup = Executors.newFixedThreadPool(Integer.parseInt(
+                Cirrus.config(config, "warmupThreads", String.valueOf(
+                        Runtime.getRuntime().availableProcessors()))));
+        try {
+            final DataSource dataSource = Cirrus.lookupDataSource(config);
+            final ScriptCache scripts = Cirrus.scriptCache(config);
+            timer.mark("init");
+
+            // check db while scripts and templates are compiled
+            Future<Object> migration = warmup.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    migrate(config, dataSource, scripts);
+                    return null;
+                }
+            });
+
+            // build first generation, compile concurrently using warmup pool
+            RELOADER = new Reloader(config, dataSource, scripts);
+            RELOADER.start(warmup);
+            timer.mark("generation");
+            try {
+                migration.get();
+            } catch (ExecutionException ee) {
+                throw ee.getCause();
+            }
+            timer.mark("migrate");
+        } catch (Throwable t) {
+            log.error("Error initialising cirrus", t);
+            throw new ServletException("Error initialising cirrus", t);
+        } finally {
+            warmup.shutdown();
+            timer.end("cirrus startup");
+        }
+
+        STATIC_INIT = true;
+    }
+
+    /**
+     * Test DB connection and run cirrus.migrate(dbversion) using
+     * its own scope.
+     */
+    private static void migrate(ServletConfig config, DataSource dataSource,
+            ScriptCache scripts) throws IOException, SQLException {
 
+        Context cx = Cirrus.CONTEXT_FACTORY.enterContext();
         try {
-            GLOBAL_SCOPE = new ImporterTopLevel(cx);
-            CIRRUS = new Cirrus(GLOBAL_SCOPE, getServletConfig());
+            ScriptableObject scope = new ImporterTopLevel(cx, true);
+            Cirrus cirrus = new Cirrus(scope, config, dataSource, scripts);
 
             // test cnxn
-            DB db = CIRRUS.getDB();
+            DB db = cirrus.getDB();
             db.open();
             db.close();
 
             // get dbversion from servlet init-param
-            String dbversion = getServletConfig().getInitParameter("dbversion");
+            String dbversion = Cirrus.config(config, "dbversion", null);
             log.info("servlet init-param dbversion=" + dbversion);
 
             // cirrus.migrate(dbversion)
-            Function migrate = (Function) CIRRUS.get("migrate", CIRRUS);
-            migrate.call(cx, GLOBAL_SCOPE, CIRRUS, new Object[] {dbversion});
-        } catch (Exception e) {
-            log.error("Error initialising cirrus", e);
-            throw new ServletException("Error initialising cirrus", e);
+            Function migrate = (Function) cirrus.get("migrate", cirrus);
+            migrate.call(cx, scope, cirrus, new Object[] {dbversion});
         } finally {
             Context.exit();
         }
+    }
 
-        STATIC_INIT = true;
+    /** Stop background reloading. */
+    private synchronized void staticDestroy() {
+        if (!STATIC_INIT) return;
+        RELOADER.shutdown();
+        Suspension.shutdown();
+        VIRTUAL_THREADS = false;
+        log.info(Cirrus.ADMISSION);
+        if (DISPATCHER != null) {
+            log.info(DISPATCHER);
+            DISPATCHER.shutdown();
+            DISPATCHER = null;
+        }
+        STATIC_INIT = false;
     }
 
     /**
-     * Calls JavaScript 'cirrus.service(request, response)'
+     * Calls JavaScript 'cirrus.service(request, response)' using the
+     * current generation's shard for this thread and a new request scope
+     * which has the shard's shared global scope as its prototype.
+     * Responds 503 if request is still running after its {@link Deadline}.
+     * If continuations are used, the request may be suspended and
+     * dispatched again, see {@link Suspension}.  Config 'virtualThreads'
+     * needs a container which dispatches on virtual threads (e.g.
+     * script/server.js), requests on platform threads run as usual and a
+     * warning is logged.  With config 'asyncThreads', requests are handed
+     * to {@link Dispatcher} instead.
      */
     @Override
-    public void service(HttpServletRequest req, HttpServletResponse res)
+    public void service(final HttpServletRequest req, final HttpServletResponse res)
             throws ServletException, IOException {
 
+        if (DISPATCHER != null) {
+            DISPATCHER.dispatch(req, res, new Dispatcher.Handler() {
+                public void service(HttpServletRequest req, HttpServletResponse res)
+                        throws Exception {
+                    serviceInThread(req, res);
+                }
+            });
+            return;
+        } else if (VIRTUAL_THREADS && !PLATFORM_WARNED && !VirtualThreads.isVirtual()) {
+            PLATFORM_WARNED = true;
+            log.warn("virtualThreads set but container dispatches on platform threads,"
+                    + " requests use servlet threads");
+        }
+        serviceInThread(req, res);
+    }
 
-        try {
-            Context cx = Context.enter();
-            cx.setWrapFactory(Cirrus.WRAP_FACTORY); // use cirrus WrapFactory
+    /** @return dispatcher for config 'asyncThreads', or null */
+    public static Dispatcher getDispatcher() {
+        return DISPATCHER;
+    }
 
-            CIRRUS.load("/app/cirrus.js"); // might have changed
+    // run request in current thread
+    private void serviceInThread(final HttpServletRequest req,
+            final HttpServletResponse res) throws ServletException {
 
-            try {
-                Function service = (Function) CIRRUS.get("service", CIRRUS);
-                service.call(cx, CIRRUS, CIRRUS, new Object[] { req, res });
-            } finally {
-                Context.exit();
-            }
+        // shard used for whole request even if new generation is swapped in
+        final Suspension suspension = CONTINUATIONS ? Suspension.forRequest(req) : null;
+        final Shard shard = suspension != null
+                ? suspension.getShard() : RELOADER.getGeneration().getShard();
+        // request dispatched again after suspending is already counted
+        if (suspension == null) {
+            shard.begin();
+            Deadline.current().start(REQUEST_TIMEOUT);
+        }
+        boolean suspended = false;
+        try {
+            // thread reuses its Context, already configured by factory
+            Cirrus.CONTEXT_FACTORY.call(new ContextAction() {
+                public Object run(Context cx) {
+                    if (suspension != null) {
+                        return suspension.redispatch(cx, req, res);
+                    }
+                    Cirrus cirrus = shard.getCirrus();
+                    Scriptable scope = shard.newRequestScope(cx);
+                    Function service = (Function) cirrus.get("service", cirrus);
+                    if (CONTINUATIONS) {
+                        return Suspension.call(cx, shard, scope, service, req, res);
+                    }
+                    return service.call(cx, scope, cirrus, new Object[] { req, res });
+                }
+            });
         } catch (Exception e) {
+            if (halted(e, req, res)) {
+                return;
+            }
+            if (e instanceof RuntimeException && CONTINUATIONS
+                    && Suspension.forRequest(req) != null) {
+                // container releases thread and dispatches again
+                suspended = true;
+                throw (RuntimeException) e;
+            }
             log.error("Error running cirrus", e);
             throw new ServletException("Error running cirrus", e);
+        } finally {
+            // deadline of suspended request is detached from thread
+            Deadline.current().clear();
+            if (!suspended) {
+                shard.end();
+            }
+        }
+    }
+
+    // set status if error is (or is caused by) halt or deadline exceeded
+    private static boolean halted(Throwable t, HttpServletRequest req,
+            HttpServletResponse res) {
+
+        for (; t != null; t = t.getCause()) {
+            int status = t instanceof Halt ? ((Halt) t).getStatus()
+                    : t instanceof Deadline.Exceeded ? 503 : 0;
+            if (status != 0) {
+                log.warn("halted " + req.getMethod() + " " + req.getRequestURI()
+                        + " with status " + status + ": " + t.getMessage());
+                if (!res.isCommitted()) {
+                    res.reset();
+                    res.setStatus(status);
+                }
+                return true;
+            }
         }
+        return false;
     }
 }
\ No newline at end of file
@@ -297,14 +297,21 @@ public class DB {
         PreparedStatement stmt = null;
 
         try {
+            int timeout = Deadline.current().queryTimeout();
             stmt = dbconn.prepareStatement(sql);
+            setQueryTimeout(stmt, timeout);
             setParams(stmt, params);
             if (!stmt.execute()) { // returns false if result is count
                 count = stmt.getUpdateCount();
             }
             ok = true;
             return stmt;
+        } catch (SQLException e) {
+            throw deadlineExceeded(e);
         } finally {
+            if (!ok) {
+                closeQuietly(stmt);
+            }
             long timeTaken = System.currentTimeMillis() - start;
             log.debug(format("sql: %s : %s : %d : %05d : %s : %s",
                     sqlcmd, ok ? "ok" : "error", count, timeTaken, sql,
@@ -336,6 +343,35 @@ public class DB {
         }
     }
 
+    // limit statement to time remaining until request deadline, timeout
+    // is checked before statement is prepared since it throws once passed
+    private void setQueryTimeout(Statement stmt, int timeout) throws SQLException {
+        if (timeout > 0) {
+            stmt.setQueryTimeout(timeout);
+        }
+    }
+
+    // close statement not returned to caller because of error
+    private void closeQuietly(Statement stmt) {
+        if (stmt != null) {
+            try {
+                stmt.close();
+            } catch (Exception e) {
+                log.error("Error closing stmt", e);
+            }
+        }
+    }
+
+    // statement cancelled by query timeout becomes 503 if deadline passed
+    private SQLException deadlineExceeded(SQLException e) {
+        Deadline deadline = Deadline.current();
+        if (deadline.isExpired()) {
+            log.warn("sql cancelled, request deadline passed: " + e);
+            deadline.queryTimeout(); // throws Halt 503
+        }
+        return e;
+    }
+
     /**
      * delete.
      * @param sql sql delete statement
@@ -398,13 +434,21 @@ public class DB {
     public StatementResultSet select(String sql, Object... params) throws SQLException {
         long start = System.currentTimeMillis();
         boolean ok = false;
+        PreparedStatement stmt = null;
         try {
-            PreparedStatement stmt = dbconn.prepareStatement(sql);
+            int timeout = Deadline.current().queryTimeout();
+            stmt = dbconn.prepareStatement(sql);
+            setQueryTimeout(stmt, timeout);
             setParams(stmt, params);
             ResultSet rs = stmt.executeQuery();
             ok = true;
             return new StatementResultSet(stmt, rs);
+        } catch (SQLException e) {
+            throw deadlineExceeded(e);
         } finally {
+            if (!ok) {
+                closeQuietly(stmt);
+            }
             long timeTaken = System.currentTimeMillis() - start;
             log.debug(format("sql: select : %s : %05d : %s : %s",
                     ok ? "ok" : "error", timeTaken, sql, JSON.stringify(params)));
@@ -0,0 +1,168 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+/**
+ * Deadline for the request running on the current thread.  Checked by
+ * {@link CirrusContextFactory} while javascript runs and by {@link DB}
+ * which uses the remaining time as the statement query timeout.
+ * <p>
+ * When the deadline passes, {@link #check()} throws {@link Halt} 503
+ * which 'cirrus.forward' handles like any other status so the error
+ * page is rendered.  If the request is still running after a further
+ * {@link #GRACE_MILLIS}, e.g. a loop which catches all errors, then
+ * {@link Exceeded} is thrown once.  It cannot be caught by javascript,
+ * 'finally' blocks still run, and {@link CirrusServlet} responds 503.
+ * @author Joel Hockey
+ */
+public class Deadline {
+    /** Time allowed after deadline to render error page and clean up. */
+    public static final long GRACE_MILLIS = 1000;
+
+    private static final ThreadLocal<Deadline> DEADLINES = new ThreadLocal<Deadline>() {
+        @Override
+        protected Deadline initialValue() {
+            return new Deadline();
+        }
+    };
+
+    private long start;
+    private long end; // nanos, or 0 if no deadline
+    private boolean halted;
+    private boolean exceeded;
+
+    /** @return deadline for current thread */
+    public static Deadline current() {
+        return DEADLINES.get();
+    }
+
+    /**
+     * Remove deadline from current thread, used when request is
+     * suspended.  Thread gets a new deadline.
+     * @return deadline of current thread
+     */
+    public static Deadline detach() {
+        Deadline result = DEADLINES.get();
+        DEADLINES.set(new Deadline());
+        return result;
+    }
+
+    /**
+     * Use deadline for current thread, used when request is resumed.
+     * @param deadline deadline from {@link #detach()}
+     */
+    public static void attach(Deadline deadline) {
+        DEADLINES.set(deadline);
+    }
+
+    /**
+     * Start timing request.
+     * @param timeoutMillis millis allowed for request, or 0 for no deadline
+     */
+    public void start(long timeoutMillis) {
+        start = System.nanoTime();
+        halted = false;
+        exceeded = false;
+        setTimeout(timeoutMillis);
+    }
+
+    /**
+     * Change deadline, e.g. for route with its own timeout.  Starts
+     * timing if not already started.
+     * @param timeoutMillis millis allowed since request started, or 0
+     * for no deadline
+     */
+    public void setTimeout(long timeoutMillis) {
+        if (start == 0) {
+            start(0);
+        }
+        end = timeoutMillis > 0 ? start + timeoutMillis * 1000000 : 0;
+    }
+
+    /** Stop timing, request is finished. */
+    public void clear() {
+        start = 0;
+        end = 0;
+        halted = false;
+        exceeded = false;
+    }
+
+    /** @return true if deadline set and passed */
+    public boolean isExpired() {
+        return end != 0 && System.nanoTime() - end >= 0;
+    }
+
+    /** @return millis until deadline, or Long.MAX_VALUE if no deadline */
+    public long remainingMillis() {
+        return end == 0 ? Long.MAX_VALUE : (end - System.nanoTime()) / 1000000;
+    }
+
+    /**
+     * Check deadline, does nothing if not passed.
+     * @throws Halt 503 if deadline passed
+     * @throws Exceeded once if still running after grace period
+     */
+    public void check() {
+        if (end == 0 || exceeded || System.nanoTime() - end < 0) {
+            return;
+        }
+        if (halted && System.nanoTime() - end >= GRACE_MILLIS * 1000000) {
+            exceeded = true;
+            throw new Exceeded("Request deadline exceeded by more than "
+                    + GRACE_MILLIS + "ms");
+        }
+        if (!halted) {
+            halted = true;
+            throw Halt.forStatus(503);
+        }
+    }
+
+    /**
+     * Halt request which did not finish in time, used when a suspended
+     * request times out.  Deadline counts as passed from now if not
+     * already, so the request has {@link #GRACE_MILLIS} to clean up.
+     * @return {@link Halt} 503 to throw in request
+     */
+    public Halt halt() {
+        if (start == 0) {
+            start(0);
+        }
+        long now = System.nanoTime();
+        if (end == 0 || now - end < 0) {
+            end = now;
+        }
+        halted = true;
+        return Halt.forStatus(503);
+    }
+
+    /**
+     * Return query timeout for statements, at least 1 second.
+     * @return seconds remaining rounded up, or 0 if no deadline
+     * @throws Halt 503 if deadline passed
+     */
+    public int queryTimeout() {
+        if (end == 0) {
+            return 0;
+        }
+        long remaining = end - System.nanoTime();
+        if (remaining <= 0) {
+            // statements are never started after deadline
+            halted = true;
+            throw Halt.forStatus(503);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, (remaining + 999999999L) / 1000000000L);
+    }
+
+    /**
+     * Thrown when request keeps running after deadline and grace
+     * period.  Javascript cannot catch it.
+     */
+    public static class Exceeded extends RuntimeException {
+        private static final long serialVersionUID = 0x3D81F5A92C6E07B4L;
+
+        /** @param msg message */
+        public Exceeded(String msg) {
+            super(msg);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs requests on a bounded pool of threads rather than the container
+ * thread.  Used by {@link CirrusServlet} when config 'asyncThreads' is
+ * set.  Requests wait in a queue of size 'asyncQueue' when all threads
+ * are busy, and get 503 straight away when the queue is full.
+ * <p>
+ * Servlet API 2.5 has no async support.  If Jetty 6 continuations are
+ * available the container thread is released while the request runs,
+ * and Jetty dispatches the request again to complete the response.
+ * Other containers keep the container thread waiting.  Either way the
+ * request writes to a {@link BufferedResponse} which is copied to the
+ * real response by the container thread.
+ * <p>
+ * Pool size, queue depth, rejected and completed counts are available
+ * from the getters and {@link #toString()}.
+ * @author Joel Hockey
+ */
+public class Dispatcher {
+    private static final Log log = LogFactory.getLog(Dispatcher.class);
+
+    /** Request attribute holding job of dispatched request. */
+    public static final String ATTRIBUTE = Dispatcher.class.getName();
+
+    /** Handles request on pool thread. */
+    public interface Handler {
+        /**
+         * @param req request
+         * @param res buffered response
+         * @throws Exception if error
+         */
+        void service(HttpServletRequest req, HttpServletResponse res) throws Exception;
+    }
+
+    // jetty 6 continuations, loaded by reflection, null if not available
+    private static Method GET_CONTINUATION;
+    private static Method SUSPEND;
+    private static Method RESUME;
+    private static Class<?> WAITING_CONTINUATION;
+    static {
+        try {
+            Class<?> support = Class.forName("org.mortbay.util.ajax.ContinuationSupport");
+            Class<?> continuation = Class.forName("org.mortbay.util.ajax.Continuation");
+            GET_CONTINUATION = support.getMethod("getContinuation",
+                    HttpServletRequest.class, Object.class);
+            SUSPEND = continuation.getMethod("suspend", long.class);
+            RESUME = continuation.getMethod("resume");
+            WAITING_CONTINUATION = Class.forName("org.mortbay.util.ajax.WaitingContinuation");
+        } catch (Exception e) {
+            log.debug("jetty continuations not available: " + e);
+        }
+    }
+
+    private ThreadPoolExecutor executor;
+    private int queueSize;
+    private long timeout;
+    private AtomicLong rejected = new AtomicLong();
+    private AtomicLong completed = new AtomicLong();
+    private AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * Create dispatcher.
+     * @param threads max threads running requests
+     * @param queueSize max requests waiting for a thread
+     * @param timeout millis container waits for request before 503
+     */
+    public Dispatcher(int threads, int queueSize, long timeout) {
+        this.queueSize = queueSize;
+        this.timeout = timeout;
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "cirrus-async-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run request on pool thread.  Called by container thread when
+     * request is first dispatched, and again by Jetty when it resumes.
+     * @param req request
+     * @param res response
+     * @param handler runs request
+     * @throws IOException if error writing response
+     * @throws ServletException if handler throws error
+     */
+    public void dispatch(HttpServletRequest req, HttpServletResponse res,
+            Handler handler) throws IOException, ServletException {
+
+        Job job = (Job) req.getAttribute(ATTRIBUTE);
+        if (job == null) {
+            job = new Job(req, new BufferedResponse(res), handler);
+            try {
+                job.continuation = GET_CONTINUATION != null
+                        ? GET_CONTINUATION.invoke(null, req, null) : null;
+            } catch (Exception e) {
+                log.warn("Error getting continuation", e);
+            }
+            req.setAttribute(ATTRIBUTE, job);
+            try {
+                executor.execute(job);
+            } catch (RejectedExecutionException ree) {
+                req.removeAttribute(ATTRIBUTE);
+                rejected.incrementAndGet();
+                log.warn("rejected " + req.getMethod() + " " + req.getRequestURI()
+                        + ", " + this);
+                res.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            if (job.continuation != null
+                    && !WAITING_CONTINUATION.isInstance(job.continuation)) {
+                job.suspend(timeout);
+            } else {
+                job.await(timeout);
+            }
+        } else if (job.continuation != null) {
+            try {
+                // jetty returns immediately and clears pending state
+                SUSPEND.invoke(job.continuation, Long.valueOf(0));
+            } catch (Exception e) {
+                log.warn("Error resetting continuation", e);
+            }
+        }
+        req.removeAttribute(ATTRIBUTE);
+        complete(job, req, res);
+    }
+
+    // copy result of job to response, or 503 if not done in time
+    private void complete(Job job, HttpServletRequest req,
+            HttpServletResponse res) throws IOException, ServletException {
+
+        if (!job.finish()) {
+            timedOut.incrementAndGet();
+            log.warn("timed out " + req.getMethod() + " " + req.getRequestURI()
+                    + ", " + this);
+            if (!res.isCommitted()) {
+                res.reset();
+                res.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }
+            return;
+        }
+        completed.incrementAndGet();
+        if (job.error instanceof ServletException) {
+            throw (ServletException) job.error;
+        } else if (job.error instanceof IOException) {
+            throw (IOException) job.error;
+        } else if (job.error instanceof RuntimeException) {
+            throw (RuntimeException) job.error;
+        } else if (job.error instanceof Error) {
+            throw (Error) job.error;
+        } else if (job.error != null) {
+            throw new ServletException("Error running request", job.error);
+        }
+        job.response.complete();
+    }
+
+    /** Stop pool threads, requests already queued are not run. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /** @return number of threads in pool */
+    public int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+    /** @return max number of threads in pool */
+    public int getMaxPoolSize() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /** @return number of threads running requests */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /** @return number of requests waiting for a thread */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /** @return max number of requests waiting for a thread */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /** @return number of requests rejected because queue was full */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /** @return number of requests completed */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /** @return number of requests which did not finish in time */
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    /** @return pool and queue sizes and counts */
+    @Override
+    public String toString() {
+        return "dispatcher threads=" + getActiveCount() + "/" + getPoolSize()
+                + "/" + getMaxPoolSize() + " queue=" + getQueueDepth() + "/"
+                + queueSize + " completed=" + completed + " rejected="
+                + rejected + " timedOut=" + timedOut;
+    }
+
+    /** Request waiting for or running on pool thread. */
+    private static class Job implements Runnable {
+        private HttpServletRequest request;
+        private BufferedResponse response;
+        private Handler handler;
+        private Object continuation;
+        private Throwable error;
+        private boolean started;
+        private boolean done;
+        private boolean abandoned;
+
+        Job(HttpServletRequest request, BufferedResponse response, Handler handler) {
+            this.request = request;
+            this.response = response;
+            this.handler = handler;
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (abandoned) {
+                    return;
+                }
+                started = true;
+            }
+            try {
+                handler.service(request, response);
+            } catch (Throwable t) {
+                error = t;
+            }
+            synchronized (this) {
+                done = true;
+                notifyAll();
+            }
+            if (continuation != null) {
+                try {
+                    RESUME.invoke(continuation);
+                } catch (Exception e) {
+                    log.warn("Error resuming continuation", e);
+                }
+            }
+        }
+
+        // release container thread, jetty dispatches again when done
+        void suspend(long timeout) {
+            try {
+                SUSPEND.invoke(continuation, Long.valueOf(timeout));
+            } catch (InvocationTargetException ite) {
+                // resume is ignored if job finished before suspend
+                synchronized (this) {
+                    if (done) {
+                        try {
+                            RESUME.invoke(continuation);
+                        } catch (Exception e) {
+                            log.warn("Error resuming continuation", e);
+                        }
+                    }
+                }
+                if (ite.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ite.getCause();
+                }
+                throw new IllegalStateException(ite.getCause());
+            } catch (IllegalAccessException iae) {
+                throw new IllegalStateException(iae);
+            }
+        }
+
+        // wait for job when container cannot release thread
+        synchronized void await(long timeout) {
+            long end = System.currentTimeMillis() + timeout;
+            try {
+                for (long wait = timeout; !done && wait > 0; wait = end - System.currentTimeMillis()) {
+                    wait(wait);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // return true if done, else job is abandoned and will not start
+        synchronized boolean finish() {
+            abandoned = !done;
+            if (abandoned && started) {
+                log.warn("request still running after timeout: "
+                        + request.getMethod() + " " + request.getRequestURI());
+            }
+            return done;
+        }
+    }
+}
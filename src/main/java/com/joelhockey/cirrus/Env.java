@@ -0,0 +1,273 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Request environment passed as 'this' to controllers and templates.
+ * Properties are created on first access:
+ * <ul>
+ * <li>request, response - servlet request and response, see {@link Response}</li>
+ * <li>method, path - HTTP method and request URI</li>
+ * <li>params - request parameters, first value of each</li>
+ * <li>requestHeaders - request headers, first value of each</li>
+ * <li>cookies - cookie values by name</li>
+ * <li>status, headers, body - optionally set for response</li>
+ * <li>flash - temporary store</li>
+ * <li>timer - {@link Timer} started when request begins</li>
+ * </ul>
+ * Any other properties can be set.  Each thread reuses its env, timer
+ * and the objects created for params, requestHeaders, cookies, headers,
+ * flash and body for every request.  When released, those objects are
+ * emptied and all other properties are removed.
+ * @author Joel Hockey
+ */
+public class Env extends ScriptableObject {
+    private static final long serialVersionUID = 0x4F1C2B8A6D3E9057L;
+
+    private static final ThreadLocal<Env> ENVS = new ThreadLocal<Env>() {
+        @Override
+        protected Env initialValue() {
+            return new Env();
+        }
+    };
+
+    private transient HttpServletRequest request;
+    private transient HttpServletResponse response;
+    private transient Timer timer = new Timer();
+    private transient Response wrapper;
+    // objects created on first access, emptied and reused by next request
+    private transient Map<String, Scriptable> objects = new HashMap<String, Scriptable>();
+
+    /**
+     * Return env for current thread, or new env if the thread's env is
+     * in use by an outer request.  Timer is started.
+     * @param scope shared global scope
+     * @param prototype 'cirrus.Env.prototype'
+     * @param request servlet request
+     * @param response servlet response
+     * @return env
+     */
+    public static Env forThread(Scriptable scope, Scriptable prototype,
+            HttpServletRequest request, HttpServletResponse response) {
+        Env env = ENVS.get();
+        if (env.request != null) {
+            env = new Env();
+        }
+        env.setParentScope(scope);
+        env.setPrototype(prototype);
+        env.request = request;
+        env.response = response;
+        env.timer.start();
+        return env;
+    }
+
+    /**
+     * Give current thread a new env if its env is in use by a request
+     * which has been suspended and may resume on another thread.
+     */
+    public static void detach() {
+        if (ENVS.get().request != null) {
+            ENVS.set(new Env());
+        }
+    }
+
+    /**
+     * Remove all properties and empty reused objects so env can be
+     * reused by next request.
+     */
+    public void release() {
+        clear(this);
+        for (Scriptable obj : objects.values()) {
+            clear(obj);
+        }
+        request = null;
+        response = null;
+    }
+
+    // delete all properties of obj
+    private static void clear(Scriptable obj) {
+        Object[] ids = obj instanceof ScriptableObject
+                ? ((ScriptableObject) obj).getAllIds() : obj.getIds();
+        for (Object id : ids) {
+            if (id instanceof String) {
+                obj.delete((String) id);
+            } else {
+                obj.delete(((Number) id).intValue());
+            }
+        }
+        if (obj instanceof NativeArray) {
+            ScriptableObject.putProperty(obj, "length", 0);
+        }
+    }
+
+    @Override
+    public String getClassName() {
+        return "Env";
+    }
+
+    @Override
+    public Object get(String name, Scriptable start) {
+        Object result = super.get(name, start);
+        if (result == NOT_FOUND && request != null) {
+            result = create(name);
+            if (result != NOT_FOUND) {
+                super.put(name, this, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param name property name
+     * @return property value, or NOT_FOUND if not set or not created yet
+     */
+    public Object peek(String name) {
+        return super.get(name, this);
+    }
+
+    @Override
+    public boolean has(String name, Scriptable start) {
+        return super.has(name, start) || request != null && isLazy(name);
+    }
+
+    // names of properties created on first access
+    private static boolean isLazy(String name) {
+        return "request".equals(name) || "response".equals(name)
+                || "method".equals(name) || "path".equals(name)
+                || "params".equals(name) || "requestHeaders".equals(name)
+                || "cookies".equals(name) || "status".equals(name)
+                || "headers".equals(name) || "body".equals(name)
+                || "flash".equals(name) || "timer".equals(name);
+    }
+
+    // create property value on first access
+    private Object create(String name) {
+        if (!isLazy(name)) {
+            return NOT_FOUND;
+        }
+        Scriptable scope = getParentScope();
+        Context cx = Context.getCurrentContext();
+        if ("request".equals(name)) {
+            return Context.javaToJS(request, scope);
+        } else if ("response".equals(name)) {
+            if (wrapper == null) {
+                wrapper = new Response(response);
+            } else {
+                wrapper.reset(response);
+            }
+            return Context.javaToJS(wrapper, scope);
+        } else if ("method".equals(name)) {
+            return request.getMethod();
+        } else if ("path".equals(name)) {
+            return request.getRequestURI();
+        } else if ("timer".equals(name)) {
+            return Context.javaToJS(timer, scope);
+        } else if ("status".equals(name)) {
+            return null;
+        }
+
+        // reuse object unless it belongs to an older generation's scope
+        Scriptable obj = objects.get(name);
+        if (obj == null || obj.getParentScope() != scope) {
+            obj = "body".equals(name) ? cx.newArray(scope, 0) : cx.newObject(scope);
+            objects.put(name, obj);
+        }
+        if ("params".equals(name)) {
+            for (Enumeration<?> en = request.getParameterNames(); en.hasMoreElements(); ) {
+                String param = (String) en.nextElement();
+                obj.put(param, obj, request.getParameter(param));
+            }
+        } else if ("requestHeaders".equals(name)) {
+            Enumeration<?> en = request.getHeaderNames();
+            while (en != null && en.hasMoreElements()) {
+                String header = (String) en.nextElement();
+                obj.put(header, obj, request.getHeader(header));
+            }
+        } else if ("cookies".equals(name)) {
+            Cookie[] cookies = request.getCookies();
+            for (int i = 0; cookies != null && i < cookies.length; i++) {
+                obj.put(cookies[i].getName(), obj, cookies[i].getValue());
+            }
+        }
+        return obj;
+    }
+
+    /**
+     * Servlet response given to scripts as 'response'.  Templates
+     * rendered by 'env.jst' write to the response stream (see
+     * {@link TemplateWriter#forResponse(HttpServletResponse)}), after
+     * which 'getWriter' returns a writer to the same stream rather than
+     * throwing IllegalStateException.
+     */
+    public static class Response extends HttpServletResponseWrapper {
+        private boolean streamUsed;
+        private PrintWriter writer;
+
+        /** @param response servlet response */
+        public Response(HttpServletResponse response) {
+            super(response);
+        }
+
+        // wrap response of next request
+        void reset(HttpServletResponse response) {
+            setResponse(response);
+            streamUsed = false;
+            writer = null;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            ServletOutputStream out = super.getOutputStream();
+            streamUsed = true;
+            return out;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null && !streamUsed) {
+                writer = super.getWriter();
+            } else if (writer == null) {
+                // flushed after each write, stream may be written in between
+                writer = new PrintWriter(new OutputStreamWriter(
+                        super.getOutputStream(), getCharacterEncoding()), true) {
+                    @Override
+                    public void write(int c) {
+                        super.write(c);
+                        flush();
+                    }
+
+                    @Override
+                    public void write(char[] buf, int off, int len) {
+                        super.write(buf, off, len);
+                        flush();
+                    }
+
+                    @Override
+                    public void write(String s, int off, int len) {
+                        super.write(s, off, len);
+                        flush();
+                    }
+                };
+            }
+            return writer;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Detects changes to files in '/WEB-INF/app' and classpath 'app/' and
+ * notifies {@link Reloader}.  Exploded dirs are watched with
+ * {@link WatchService}.  If files are in a jar (or war that is not
+ * exploded) and cannot be watched, a single background thread scans
+ * timestamps of loaded files every {@link Cirrus#RELOAD_WAIT} ms instead.
+ * Either way, request threads never check files.
+ * @author Joel Hockey
+ */
+public class FileWatcher implements Runnable {
+    private static final Log log = LogFactory.getLog(FileWatcher.class);
+
+    private Reloader reloader;
+    // app dirs, e.g. '.../WEB-INF/app' and '.../WEB-INF/classes/app'
+    private List<Path> roots = new ArrayList<Path>();
+    private boolean scan;
+    private WatchService watchService;
+    private Map<WatchKey, Path> dirs = new HashMap<WatchKey, Path>();
+    private Thread thread;
+
+    /**
+     * Create watcher.  Uses scan if any app dir cannot be watched.
+     * @param servletContext used to find '/WEB-INF/app'
+     * @param reloader notified of changes
+     * @throws IOException if error finding app dirs
+     */
+    public FileWatcher(ServletContext servletContext, Reloader reloader)
+            throws IOException {
+
+        this.reloader = reloader;
+        String webinfApp = servletContext.getRealPath("/WEB-INF/app");
+        if (webinfApp != null && new File(webinfApp).isDirectory()) {
+            roots.add(Paths.get(webinfApp));
+        } else if (servletContext.getResource("/WEB-INF/app/") != null) {
+            scan = true;
+        }
+        URL cirrusjs = Cirrus.class.getResource("/app/cirrus.js");
+        if (cirrusjs != null && "file".equals(cirrusjs.getProtocol())) {
+            try {
+                roots.add(Paths.get(cirrusjs.toURI()).getParent());
+            } catch (Exception e) {
+                log.warn("Unexpected error converting URI: " + cirrusjs, e);
+                scan = true;
+            }
+        } else if (cirrusjs != null) {
+            scan = true; // in jar
+        }
+    }
+
+    /** @return true if scanning timestamps, false if using {@link WatchService} */
+    public boolean isScan() {
+        return scan;
+    }
+
+    /**
+     * Register watched dirs and start background thread.
+     * @throws IOException if error registering dirs
+     */
+    public void start() throws IOException {
+        if (scan) {
+            log.info("scanning for changes every " + Cirrus.RELOAD_WAIT + " ms");
+        } else {
+            watchService = FileSystems.getDefault().newWatchService();
+            for (Path root : roots) {
+                log.info("watching for changes: " + root);
+                register(root);
+            }
+        }
+        thread = new Thread(this, "cirrus-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stop background thread. */
+    public void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ioe) {
+                log.warn("Error closing watch service", ioe);
+            }
+        }
+    }
+
+    public void run() {
+        try {
+            if (scan) {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(Cirrus.RELOAD_WAIT);
+                    Generation generation = reloader.getGeneration();
+                    if (generation != null) {
+                        generation.getCirrus().checkModified();
+                    }
+                }
+            } else {
+                while (true) {
+                    watch(watchService.take());
+                }
+            }
+        } catch (InterruptedException ie) {
+            log.info("stopped");
+        } catch (ClosedWatchServiceException cwse) {
+            log.info("stopped");
+        }
+    }
+
+    // notify changes for key, register any new dirs
+    private void watch(WatchKey key) {
+        Path dir = dirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || dir == null) {
+                // events lost, don't know what changed
+                reloader.fileChanged("/app/");
+                continue;
+            }
+            Path file = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(file)) {
+                try {
+                    register(file);
+                } catch (IOException ioe) {
+                    log.warn("Error watching dir: " + file, ioe);
+                }
+            }
+            reloader.fileChanged(appPath(file));
+        }
+        if (!key.reset()) {
+            dirs.remove(key); // dir deleted
+        }
+    }
+
+    // watch dir and all subdirs
+    private void register(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watchService,
+                        ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                dirs.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // '.../WEB-INF/app/controllers/x.js' => '/app/controllers/x.js'
+    private String appPath(Path file) {
+        for (Path root : roots) {
+            if (file.startsWith(root)) {
+                StringBuilder sb = new StringBuilder("/app");
+                for (Path part : root.relativize(file)) {
+                    sb.append('/').append(part);
+                }
+                return sb.toString();
+            }
+        }
+        return file.toString();
+    }
+}
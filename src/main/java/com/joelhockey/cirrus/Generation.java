@@ -0,0 +1,146 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.sql.DataSource;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * A generation is one or more {@link Shard}s, each a shared global scope
+ * and {@link Cirrus} with all scripts and templates loaded.  Once built,
+ * a generation is sealed and never changes, see {@link Cirrus#sealObject()}.  When files change, a new
+ * generation is built and replaces the old one.
+ * <p>
+ * Each thread is pinned to a shard, assigned round-robin the first
+ * time the thread uses any generation, so requests are spread across
+ * shards and each thread always uses the same shard.
+ * @author Joel Hockey
+ */
+public class Generation {
+    // shard slot for each thread, same slot used in every generation
+    private static final AtomicInteger NEXT_SLOT = new AtomicInteger();
+    private static final ThreadLocal<Integer> THREAD_SLOT = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return NEXT_SLOT.getAndIncrement() & Integer.MAX_VALUE;
+        }
+    };
+
+    private int number;
+    private Shard[] shards;
+
+    private Generation(int number, Shard[] shards) {
+        this.number = number;
+        this.shards = shards;
+    }
+
+    /**
+     * Build new generation.  Loads '/app/cirrus.js' and all other scripts
+     * and templates into each shard, then seals.  Scripts and templates
+     * are compiled once and shared by all shards, and compiled classes
+     * no longer used are deleted from disk.  Must not be called
+     * while servicing a request, otherwise top-level vars would go into
+     * the request scope.
+     * @param number generation number
+     * @param shardCount number of shards, at least 1
+     * @param servletConfig servlet config
+     * @param dataSource datasource for DB
+     * @param scripts compiled scripts shared by all generations
+     * @param changeListener notified when files used by generation change
+     * @param watched true if changes are detected by {@link FileWatcher}
+     * @param frozen true if files are never checked for changes
+     * @param executor used to compile scripts and templates concurrently
+     * before loading, or null to compile each as it is loaded
+     * @param snapshot restore from snapshot if sources unchanged, else
+     * load and save new snapshot, or null to always load
+     * @return new generation
+     * @throws IOException if error loading '/app/cirrus.js' or '/app/jst.js'
+     * @throws InterruptedException if interrupted while compiling
+     */
+    public static Generation build(int number, int shardCount,
+            ServletConfig servletConfig, DataSource dataSource,
+            ScriptCache scripts, Cirrus.ChangeListener changeListener,
+            boolean watched, boolean frozen, ExecutorService executor,
+            Snapshot snapshot) throws IOException, InterruptedException {
+
+        Timer timer = new Timer();
+        timer.start();
+        Context cx = Cirrus.CONTEXT_FACTORY.enterContext();
+        try {
+            Shard[] shards = new Shard[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                Cirrus cirrus = null;
+                if (snapshot != null) {
+                    cirrus = snapshot.restore(servletConfig, dataSource, scripts);
+                    timer.mark("restore snapshot");
+                }
+                if (cirrus == null) {
+                    // seal standard objects, loaded objects are sealed by cirrus
+                    ScriptableObject scope = new ImporterTopLevel(cx, true);
+                    cirrus = new Cirrus(scope, servletConfig, dataSource, scripts);
+                    timer.mark("cirrus.js");
+                    // other shards find scripts already compiled
+                    if (executor != null && i == 0) {
+                        cirrus.precompile(executor);
+                        timer.mark("compile");
+                    }
+                    cirrus.loadAll();
+                    timer.mark("load");
+                    if (snapshot != null) {
+                        snapshot.save(cirrus, scripts);
+                        timer.mark("save snapshot");
+                    }
+                }
+                ScriptableObject scope = (ScriptableObject) cirrus.getParentScope();
+
+                cirrus.setChangeListener(changeListener);
+                cirrus.setWatched(watched);
+                cirrus.setFrozen(frozen);
+                cirrus.sealObject();
+                scope.sealObject();
+                shards[i] = new Shard(i, scope, cirrus);
+            }
+            // classes of scripts changed since last generation not needed
+            scripts.prune();
+            return new Generation(number, shards);
+        } finally {
+            Context.exit();
+            timer.end("build generation " + number);
+        }
+    }
+
+    /** @return generation number, starts at 1 */
+    public int getNumber() {
+        return number;
+    }
+
+    /** @return all shards */
+    public Shard[] getShards() {
+        return shards.clone();
+    }
+
+    /** @return shard for current thread */
+    public Shard getShard() {
+        return shards[THREAD_SLOT.get() % shards.length];
+    }
+
+    /** @return sealed cirrus object of shard for current thread */
+    public Cirrus getCirrus() {
+        return getShard().getCirrus();
+    }
+
+    /** @return request counts of each shard */
+    @Override
+    public String toString() {
+        return "generation " + number + " " + Arrays.toString(shards);
+    }
+}
@@ -0,0 +1,89 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * Signal to end request with HTTP status, thrown by 'cirrus.halt(status)'.
+ * Javascript catch blocks see the status number, exactly as if the
+ * script had done 'throw 404', so 'cirrus.forward' handles both the
+ * same way.  Instances are preallocated for each status and have no
+ * stack trace, so halting allocates nothing.
+ * @author Joel Hockey
+ */
+public class Halt extends JavaScriptException {
+    private static final long serialVersionUID = 0x1B5E93A7C40F2D68L;
+    private static final Halt[] HALTS = new Halt[600];
+    static {
+        for (int i = 100; i < HALTS.length; i++) {
+            HALTS[i] = new Halt(i);
+        }
+    }
+
+    private Halt(int status) {
+        super(Integer.valueOf(status), null, 0);
+    }
+
+    /**
+     * @param status HTTP status 100 to 599
+     * @return preallocated signal for status
+     * @throws IllegalArgumentException if status not valid
+     */
+    public static Halt forStatus(int status) {
+        if (status < 100 || status >= HALTS.length) {
+            throw new IllegalArgumentException("Invalid HTTP status: " + status);
+        }
+        return HALTS[status];
+    }
+
+    /** @return HTTP status */
+    public int getStatus() {
+        return ((Integer) getValue()).intValue();
+    }
+
+    /** No stack trace, signal is used for control flow and shared. */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+    /**
+     * 'cirrus.halt(status)' function.  Throws preallocated {@link Halt}
+     * directly rather than via reflection so nothing is allocated.
+     */
+    static class HaltFunction extends BaseFunction {
+        private static final long serialVersionUID = 0x6A2C0E58F17B3D94L;
+
+        HaltFunction(Scriptable scope) {
+            ScriptRuntime.setFunctionProtoAndParent(this, scope);
+        }
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj,
+                Object[] args) {
+            if (args.length == 0) {
+                throw ScriptRuntime.typeError("halt: status required");
+            }
+            try {
+                throw forStatus(ScriptRuntime.toInt32(args[0]));
+            } catch (IllegalArgumentException iae) {
+                throw ScriptRuntime.typeError(iae.getMessage());
+            }
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "halt";
+        }
+
+        @Override
+        public int getArity() {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Holds the current {@link Generation} used to service requests.
+ * When {@link FileWatcher} detects changes, a new generation is built
+ * in a background thread and swapped in once complete.  Requests never
+ * wait for scripts to compile and never see a partially loaded
+ * generation.  If the new generation fails to build, the current one
+ * is kept.
+ * <p>
+ * Only one generation is built at a time.  Changes notified while
+ * building cause another build once the current one finishes.
+ * <p>
+ * When frozen, only the first generation is built and files
+ * are not watched.
+ * <p>
+ * Config 'shards' sets the number of {@link Shard}s in each generation,
+ * default 1.
+ * <p>
+ * If config 'snapshotFile' is set, the first generation is restored
+ * from {@link Snapshot} when sources are unchanged since it was saved.
+ * @author Joel Hockey
+ */
+public class Reloader implements Cirrus.ChangeListener {
+    private static final Log log = LogFactory.getLog(Reloader.class);
+
+    /** Time to wait after a change so that a burst of changes uses one build. */
+    public static final long BUILD_DELAY = 100;
+
+    private ServletConfig servletConfig;
+    private DataSource dataSource;
+    private ScriptCache scripts;
+    private boolean frozen;
+    private int shards;
+    private Snapshot snapshot;
+    private FileWatcher watcher;
+    private volatile Generation generation;
+    private AtomicInteger count = new AtomicInteger();
+    private AtomicBoolean pending = new AtomicBoolean();
+    private ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "cirrus-reloader");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Create reloader.
+     * @param servletConfig servlet config
+     * @param dataSource datasource for DB
+     * @param scripts compiled scripts shared by all generations
+     */
+    public Reloader(ServletConfig servletConfig, DataSource dataSource,
+            ScriptCache scripts) {
+        this.servletConfig = servletConfig;
+        this.dataSource = dataSource;
+        this.scripts = scripts;
+        this.frozen = Cirrus.frozen(servletConfig);
+        this.shards = Integer.parseInt(Cirrus.config(servletConfig, "shards", "1"));
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be at least 1, got: " + shards);
+        }
+        String snapshotFile = Cirrus.config(servletConfig, "snapshotFile", "");
+        if (snapshotFile.length() > 0) {
+            snapshot = new Snapshot(new File(snapshotFile));
+        }
+    }
+
+    /**
+     * Build (or restore from snapshot) first generation in current
+     * thread and start watching for changes.
+     * @param executor used to compile scripts and templates concurrently,
+     * or null to compile each as it is loaded
+     * @throws IOException if error building generation
+     * @throws InterruptedException if interrupted while building
+     */
+    public void start(ExecutorService executor)
+            throws IOException, InterruptedException {
+        generation = build(executor, snapshot);
+        if (frozen) {
+            log.info("frozen, not watching for changes");
+            return;
+        }
+        watcher = new FileWatcher(servletConfig.getServletContext(), this);
+        watcher.start();
+    }
+
+    /** @return current generation */
+    public Generation getGeneration() {
+        return generation;
+    }
+
+    /** Schedule new generation to be built, returns immediately. */
+    public void fileChanged(String path) {
+        if (pending.compareAndSet(false, true)) {
+            log.info("scheduling new generation, file changed: " + path);
+            executor.schedule(new Runnable() {
+                public void run() {
+                    rebuild();
+                }
+            }, BUILD_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Stop background threads. */
+    public void shutdown() {
+        if (watcher != null) {
+            watcher.stop();
+        }
+        executor.shutdownNow();
+        if (generation != null) {
+            log.info(generation);
+        }
+    }
+
+    // build new generation and swap, keep current on error
+    private void rebuild() {
+        // changes from now on are not included, must schedule another build
+        pending.set(false);
+        try {
+            Generation next = build(null, null);
+            Generation prev = generation;
+            generation = next;
+            log.info("using generation " + next.getNumber() + ", replaced " + prev);
+        } catch (Throwable t) {
+            log.error("Error building new generation, keeping generation "
+                    + generation.getNumber(), t);
+        }
+    }
+
+    private Generation build(ExecutorService executor, Snapshot snapshot)
+            throws IOException, InterruptedException {
+        return Generation.build(count.incrementAndGet(), shards, servletConfig,
+                dataSource, scripts, this, !frozen, frozen, executor, snapshot);
+    }
+}
@@ -0,0 +1,316 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Route table used by 'cirrus.forward' to find the controller, method
+ * handler and action for a request in one lookup.  Path
+ * '/&lt;controller>/&lt;action>/&lt;arg>...' maps to
+ * 'ctlr[method][action]' (or '$' if not found) which must accept the
+ * same number of args.
+ * <p>
+ * A route node is compiled for each controller when it is first used
+ * (or by {@link #compileAll(Scriptable)} after all controllers load).
+ * Nodes cache the method handlers, actions, arity and the 'Allow' header
+ * for 405 responses.  Nodes are rebuilt if the controller object
+ * changes, which only happens if not sealed.
+ * <p>
+ * Action functions can declare typed path params with property 'types',
+ * e.g. 'detail.types = ["int"]'.  Supported types are 'int', 'number'
+ * and 'string'.  Args which do not convert do not match the action.
+ * <p>
+ * Controllers and actions can set property 'timeout' to the millis
+ * allowed for the request, which replaces the default request deadline.
+ * Controllers can set properties 'concurrency' and 'queue' for their
+ * own bulkhead, see {@link Admission}.
+ * @author Joel Hockey
+ */
+public class Router {
+    /** Methods listed in 'Allow' header. */
+    public static final String[] METHODS = {
+        "OPTIONS", "GET", "HEAD", "POST", "PUT", "DELETE", "TRACE",
+    };
+
+    private Cirrus cirrus;
+    private Map<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+
+    /**
+     * Create router.
+     * @param cirrus used to load controllers
+     */
+    public Router(Cirrus cirrus) {
+        this.cirrus = cirrus;
+    }
+
+    /**
+     * Compile route nodes for all controllers already loaded.
+     * @param controllers 'cirrus.controllers'
+     */
+    public void compileAll(Scriptable controllers) {
+        for (Object id : controllers.getIds()) {
+            if (id instanceof String) {
+                Object ctlr = controllers.get((String) id, controllers);
+                if (ctlr instanceof Scriptable) {
+                    nodes.put((String) id, new Node((Scriptable) ctlr));
+                }
+            }
+        }
+    }
+
+    /**
+     * Find route for request.  Result has properties 'controller',
+     * 'action' and 'args' from the path, 'ctlr' if controller found else
+     * 'error', 'allow' if controller has no handler for method, and
+     * 'handler' if action found with matching arity and arg types,
+     * 'timeout' if set by action or controller, and 'concurrency' and
+     * 'queue' if set by controller.
+     * 'args' are converted to types declared by 'handler'.
+     * Must be called with a Context associated with the current thread.
+     * @param method HTTP method, e.g. 'GET'
+     * @param path request path, e.g. '/user/detail/1'
+     * @param publicPaths paths in public dir, which use 'public' controller
+     * @return route result
+     */
+    public Scriptable route(String method, String path, Scriptable publicPaths) {
+        Context cx = Context.getCurrentContext();
+        Scriptable scope = cirrus.getParentScope();
+        Scriptable result = cx.newObject(scope);
+
+        // '/user/detail/1' => controller='user', action='detail', args=['1']
+        List<String> parts = split(path);
+        String controller = parts.size() > 1 && parts.get(1).length() > 0
+                ? parts.get(1) : "index";
+        String action = parts.size() > 2 && parts.get(2).length() > 0
+                ? parts.get(2) : "index";
+        Object[] args = parts.size() > 3
+                ? parts.subList(3, parts.size()).toArray() : new Object[0];
+
+        // use public controller if path is in public dir
+        if (publicPaths != null && publicPaths.has(controller, publicPaths)) {
+            controller = "public";
+        }
+        result.put("controller", result, controller);
+        result.put("action", result, action);
+
+        Node node;
+        try {
+            node = node(controller);
+        } catch (IOException ioe) {
+            result.put("error", result, ioe.getMessage());
+            result.put("args", result, cx.newArray(scope, args));
+            return result;
+        }
+        if (node == null) {
+            result.put("args", result, cx.newArray(scope, args));
+            return result;
+        }
+        result.put("ctlr", result, node.ctlr);
+
+        int timeout = node.timeout;
+        MethodNode methodNode = node.method(method);
+        if (methodNode == null) {
+            result.put("allow", result, node.allow);
+        } else {
+            Action act = methodNode.action(action);
+            if (act != null && act.arity == args.length && act.convert(args)) {
+                result.put("handler", result, act.fn);
+                if (act.timeout > 0) {
+                    timeout = act.timeout;
+                }
+            }
+        }
+        if (timeout > 0) {
+            result.put("timeout", result, Integer.valueOf(timeout));
+        }
+        if (node.concurrency > 0) {
+            result.put("concurrency", result, Integer.valueOf(node.concurrency));
+            result.put("queue", result, Integer.valueOf(node.queue));
+        }
+        result.put("args", result, cx.newArray(scope, args));
+        return result;
+    }
+
+    // route node for controller, null if controller not found
+    private Node node(String controller) throws IOException {
+        Node node = nodes.get(controller);
+        if (node != null && cirrus.isSealed()) {
+            return node;
+        }
+        // if not sealed, controller reloaded if changed
+        Object ctlr = cirrus.controller(controller);
+        if (!(ctlr instanceof Scriptable)) {
+            return null;
+        }
+        if (node == null || node.ctlr != ctlr) {
+            node = new Node((Scriptable) ctlr);
+            nodes.put(controller, node);
+        }
+        return node;
+    }
+
+    // split on '/', keeps empty parts like String.split in javascript
+    static List<String> split(String path) {
+        List<String> result = new ArrayList<String>();
+        int start = 0;
+        for (int slash; (slash = path.indexOf('/', start)) != -1; start = slash + 1) {
+            result.add(path.substring(start, slash));
+        }
+        result.add(path.substring(start));
+        return result;
+    }
+
+    /** Controller, its method handlers, 'Allow' header, timeout and bulkhead. */
+    static class Node {
+        Scriptable ctlr;
+        String allow;
+        int timeout;
+        int concurrency;
+        int queue;
+        private Map<String, MethodNode> methods = new ConcurrentHashMap<String, MethodNode>();
+        private MethodNode defaultMethod;
+
+        Node(Scriptable ctlr) {
+            this.ctlr = ctlr;
+            StringBuilder sb = new StringBuilder();
+            for (String method : METHODS) {
+                Object handler = ScriptableObject.getProperty(ctlr, method);
+                if (handler instanceof Scriptable) {
+                    methods.put(method, new MethodNode((Scriptable) handler));
+                    sb.append(sb.length() > 0 ? ", " : "").append(method);
+                }
+            }
+            allow = sb.toString();
+            timeout = timeout(ctlr);
+            concurrency = intProperty(ctlr, "concurrency");
+            queue = intProperty(ctlr, "queue");
+            Object handler = ScriptableObject.getProperty(ctlr, "$");
+            if (handler instanceof Scriptable) {
+                defaultMethod = new MethodNode((Scriptable) handler);
+            }
+        }
+
+        // 'ctlr[method] || ctlr.$'
+        MethodNode method(String method) {
+            MethodNode result = methods.get(method);
+            if (result == null) {
+                Object handler = ScriptableObject.getProperty(ctlr, method);
+                if (handler instanceof Scriptable) {
+                    result = new MethodNode((Scriptable) handler);
+                    methods.put(method, result);
+                }
+            }
+            return result != null ? result : defaultMethod;
+        }
+    }
+
+    /** Method handler and its actions. */
+    static class MethodNode {
+        private Scriptable handler;
+        private Map<String, Action> actions = new ConcurrentHashMap<String, Action>();
+        private Action defaultAction;
+
+        MethodNode(Scriptable handler) {
+            this.handler = handler;
+            for (Object id : handler.getIds()) {
+                if (id instanceof String) {
+                    Action action = Action.create(ScriptableObject.getProperty(handler, (String) id));
+                    if (action != null) {
+                        actions.put((String) id, action);
+                    }
+                }
+            }
+            defaultAction = Action.create(ScriptableObject.getProperty(handler, "$"));
+        }
+
+        // 'handler[action] || handler.$', inherited actions found on first use
+        Action action(String name) {
+            Action result = actions.get(name);
+            if (result == null) {
+                result = Action.create(ScriptableObject.getProperty(handler, name));
+                if (result == null) {
+                    return defaultAction;
+                }
+                actions.put(name, result);
+            }
+            return result;
+        }
+    }
+
+    // 'timeout' property in millis, 0 if not set
+    static int timeout(Scriptable obj) {
+        return intProperty(obj, "timeout");
+    }
+
+    // number property, 0 if not set
+    static int intProperty(Scriptable obj, String name) {
+        Object value = ScriptableObject.getProperty(obj, name);
+        return value instanceof Number ? ScriptRuntime.toInt32(value) : 0;
+    }
+
+    /** Action function, arity, declared arg types and timeout. */
+    static class Action {
+        Function fn;
+        int arity;
+        String[] types;
+        int timeout;
+
+        // null if not a function
+        static Action create(Object value) {
+            if (!(value instanceof Function)) {
+                return null;
+            }
+            Action action = new Action();
+            action.fn = (Function) value;
+            action.arity = ScriptRuntime.toInt32(
+                    ScriptableObject.getProperty(action.fn, "arity"));
+            action.timeout = timeout(action.fn);
+            Object types = ScriptableObject.getProperty(action.fn, "types");
+            if (types instanceof NativeArray) {
+                Object[] ids = ((NativeArray) types).getIds();
+                action.types = new String[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    action.types[i] = ScriptRuntime.toString(((NativeArray) types)
+                            .get(((Integer) ids[i]).intValue(), (NativeArray) types));
+                }
+            }
+            return action;
+        }
+
+        // convert args to declared types, false if any arg does not convert
+        boolean convert(Object[] args) {
+            if (types == null) {
+                return true;
+            }
+            for (int i = 0; i < args.length && i < types.length; i++) {
+                String arg = (String) args[i];
+                if ("int".equals(types[i])) {
+                    try {
+                        args[i] = Integer.valueOf(arg);
+                    } catch (NumberFormatException nfe) {
+                        return false;
+                    }
+                } else if ("number".equals(types[i])) {
+                    double d = ScriptRuntime.toNumber(arg);
+                    if (arg.trim().length() == 0 || Double.isNaN(d)) {
+                        return false;
+                    }
+                    args[i] = Double.valueOf(d);
+                }
+            }
+            return true;
+        }
+    }
+}
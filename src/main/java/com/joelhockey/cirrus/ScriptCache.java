@@ -0,0 +1,494 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mozilla.classfile.ClassFileWriter.ClassFileFormatException;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.GeneratedClassLoader;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+/**
+ * Cache of compiled {@link Script} objects.  Scripts are compiled once
+ * at the configured optimization level and reused until the source file
+ * timestamp changes.  Scripts which are too big to be compiled to
+ * bytecode (methods over 64KB) fall back to the interpreter.
+ * <p>
+ * Scripts made by a {@link Generator}, such as templates, can use a
+ * different optimization level.  They are compiled to bytecode even
+ * when other scripts are interpreted so that continuations can be
+ * captured, since templates never suspend.
+ * <p>
+ * Compiles are single-flight.  If multiple threads compile the same
+ * script, only the first compiles and the others wait for its result.
+ * <p>
+ * If a cache dir is set, generated classes are also saved to disk in a
+ * jar file named by the SHA-1 hash of rhino version, optimization level,
+ * whether instructions are counted, source name and contents, so that
+ * scripts are not compiled again after restart.  Interpreted scripts are
+ * never saved.  Jar files not used by any script in the cache are
+ * deleted by {@link #prune()}.
+ * @author Joel Hockey
+ */
+public class ScriptCache {
+    private static final Log log = LogFactory.getLog(ScriptCache.class);
+
+    /** Optimization level used if none configured. */
+    public static final int DEFAULT_OPTIMIZATION_LEVEL = 9;
+
+    /** Prefix of classes saved in cache dir, followed by hash. */
+    public static final String CLASS_PREFIX = "org.mozilla.javascript.gen.cirrus_";
+
+    /**
+     * Generates javascript from file contents, e.g. JST.parse for
+     * templates.  Not called if script is found in disk cache.
+     */
+    public interface Generator {
+        /**
+         * @return version of generator, part of disk cache key, or null
+         * if not known in which case script is not saved to disk
+         */
+        String getVersion();
+        /**
+         * @param cx current context
+         * @param contents file contents
+         * @return generated javascript
+         */
+        String generate(Context cx, String contents);
+    }
+
+    private int optimizationLevel;
+    private int generatedOptimizationLevel;
+    private File cacheDir;
+    private ConcurrentMap<String, Entry> scripts =
+        new ConcurrentHashMap<String, Entry>();
+    // class loader for classes in each jar in cache dir, by hash
+    private ConcurrentMap<String, ClassLoader> loaders =
+        new ConcurrentHashMap<String, ClassLoader>();
+    // hashes of classes loaded for snapshot rather than compiled
+    private Set<String> restored = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Create script cache.
+     * @param optimizationLevel rhino optimization level -1 to 9
+     * where -1 is interpreted mode
+     */
+    public ScriptCache(int optimizationLevel) {
+        this(optimizationLevel, null);
+    }
+
+    /**
+     * Create script cache which also saves compiled classes to disk.
+     * @param optimizationLevel rhino optimization level -1 to 9
+     * where -1 is interpreted mode
+     * @param cacheDir dir for compiled classes, or null for no disk cache.
+     * Not used in interpreted mode.
+     */
+    public ScriptCache(int optimizationLevel, File cacheDir) {
+        this(optimizationLevel, optimizationLevel, cacheDir);
+    }
+
+    /**
+     * Create script cache with different optimization level for scripts
+     * made by a {@link Generator}.
+     * @param optimizationLevel rhino optimization level -1 to 9
+     * where -1 is interpreted mode
+     * @param generatedOptimizationLevel optimization level for scripts
+     * made by a generator
+     * @param cacheDir dir for compiled classes, or null for no disk cache.
+     * Not used in interpreted mode.
+     */
+    public ScriptCache(int optimizationLevel, int generatedOptimizationLevel,
+            File cacheDir) {
+        Context.checkOptimizationLevel(optimizationLevel);
+        Context.checkOptimizationLevel(generatedOptimizationLevel);
+        this.optimizationLevel = optimizationLevel;
+        this.generatedOptimizationLevel = generatedOptimizationLevel;
+        if (cacheDir != null && Math.max(optimizationLevel, generatedOptimizationLevel) >= 0) {
+            cacheDir.mkdirs();
+            this.cacheDir = cacheDir;
+        }
+    }
+
+    /** @return rhino optimization level used to compile scripts */
+    public int getOptimizationLevel() {
+        return optimizationLevel;
+    }
+
+    /** @return rhino optimization level used to compile generated scripts */
+    public int getGeneratedOptimizationLevel() {
+        return generatedOptimizationLevel;
+    }
+
+    /** @return dir where compiled classes are saved, or null */
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * Return hash of script in cache.  Can be used as
+     * {@link Generator#getVersion()} for scripts that generate
+     * javascript such as '/app/jst.js'.
+     * @param key cache key
+     * @return hash or null if not in cache
+     */
+    public String getHash(String key) {
+        Entry entry = scripts.get(key);
+        return entry != null ? entry.hash : null;
+    }
+
+    /**
+     * Return compiled script if it exists in cache and was compiled
+     * from source with the same timestamp.
+     * @param key cache key, usually the path of the source file
+     * @param lastModified timestamp of source
+     * @return compiled script or null if not in cache or stale.  Waits
+     * if script is currently being compiled by another thread.
+     */
+    public Script get(String key, long lastModified) {
+        Entry entry = scripts.get(key);
+        if (entry != null && entry.lastModified == lastModified) {
+            return entry.get();
+        }
+        return null;
+    }
+
+    /**
+     * Compile script and put in cache.  If script is too big to be
+     * compiled, interpreted mode is used.
+     * @param cx current context
+     * @param key cache key, usually the path of the source file
+     * @param lastModified timestamp of source
+     * @param source javascript source
+     * @param sourceName name used in error messages and stack traces
+     * @return compiled script
+     */
+    public Script compile(Context cx, String key, long lastModified,
+            String source, String sourceName) {
+        return compile(cx, key, lastModified, source, sourceName, null);
+    }
+
+    /**
+     * Compile javascript generated from file contents and put in cache.
+     * Cached script is reused only if both timestamp and contents are
+     * unchanged.  Generator is not called if compiled classes are found
+     * on disk.
+     * @param cx current context
+     * @param key cache key, usually the path of the source file
+     * @param lastModified timestamp of source
+     * @param contents file contents
+     * @param sourceName name used in error messages and stack traces
+     * @param generator generates javascript from contents, or null if
+     * contents is javascript
+     * @return compiled script
+     */
+    public Script compile(final Context cx, String key, long lastModified,
+            final String contents, final String sourceName,
+            final Generator generator) {
+
+        final int level = generator != null ? generatedOptimizationLevel : optimizationLevel;
+        String version = generator != null ? generator.getVersion() : null;
+        final boolean saved = level >= 0 && (generator == null || version != null);
+        final String hash = hash(cx, level, contents, sourceName, version);
+        Entry entry = new Entry(new FutureTask<Script>(new Callable<Script>() {
+            public Script call() {
+                Script script = saved ? loadClasses(cx, hash) : null;
+                if (script == null) {
+                    String source = generator != null
+                            ? generator.generate(cx, contents) : contents;
+                    script = compile(cx, source, sourceName, hash, level, saved);
+                }
+                return script;
+            }
+        }), lastModified, hash);
+
+        while (true) {
+            Entry existing = scripts.get(key);
+            if (existing != null && existing.lastModified == lastModified
+                    && existing.hash.equals(hash)) {
+                // already compiled, or being compiled by another thread
+                return existing.get();
+            }
+            boolean added = existing == null
+                ? scripts.putIfAbsent(key, entry) == null
+                : scripts.replace(key, existing, entry);
+            if (added) {
+                break;
+            }
+        }
+
+        // compile in this thread, remove from cache on error so it can be retried
+        entry.task.run();
+        try {
+            return entry.get();
+        } catch (RuntimeException e) {
+            scripts.remove(key, entry);
+            throw e;
+        } catch (Error e) {
+            scripts.remove(key, entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Return class generated for script in cache dir, loading classes
+     * from disk if required.  Used to deserialize compiled functions.
+     * @param cx current context
+     * @param name class name
+     * @return class
+     * @throws ClassNotFoundException if not a generated class or not found
+     */
+    public Class<?> loadClass(Context cx, String name) throws ClassNotFoundException {
+        int hashLen = 40; // SHA-1 hex
+        if (!name.startsWith(CLASS_PREFIX) || name.length() < CLASS_PREFIX.length() + hashLen) {
+            throw new ClassNotFoundException(name);
+        }
+        String hash = name.substring(CLASS_PREFIX.length(), CLASS_PREFIX.length() + hashLen);
+        ClassLoader loader = loaders.get(hash);
+        if (loader == null && loadClasses(cx, hash) != null) {
+            loader = loaders.get(hash);
+        }
+        if (loader == null) {
+            throw new ClassNotFoundException(name);
+        }
+        restored.add(hash);
+        return Class.forName(name, false, loader);
+    }
+
+    /**
+     * Remove all scripts with key starting with given prefix.
+     * @param prefix key prefix, e.g. '/app/views/'
+     */
+    public void invalidate(String prefix) {
+        for (Iterator<String> it = scripts.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Delete jar files in cache dir which are not used by any script in
+     * cache, or by a restored snapshot.  These are left when files change.
+     * Called once each generation is built.
+     */
+    public void prune() {
+        if (cacheDir == null) {
+            return;
+        }
+        Set<String> used = new HashSet<String>(restored);
+        for (Entry entry : scripts.values()) {
+            used.add(entry.hash);
+        }
+        File[] files = cacheDir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+            if (name.endsWith(".jar")
+                    && !used.contains(name.substring(0, name.length() - ".jar".length()))) {
+                log.debug("deleting unused compiled classes: " + files[i]);
+                files[i].delete();
+            }
+        }
+        loaders.keySet().retainAll(used);
+    }
+
+    // compile at given level, fall back to interpreter if too big
+    private Script compile(Context cx, String source, String sourceName,
+            String hash, int level, boolean saved) {
+        log.info("compiling: " + sourceName);
+        int savedLevel = cx.getOptimizationLevel();
+        cx.setOptimizationLevel(level);
+        try {
+            if (cacheDir != null && saved) {
+                return compileClasses(cx, source, sourceName, hash);
+            }
+            return cx.compileString(source, sourceName, 1, null);
+        } catch (ClassFileFormatException cffe) {
+            log.warn("Could not compile " + sourceName + " at optimization level "
+                    + level + ", using interpreter: " + cffe.getMessage());
+            cx.setOptimizationLevel(-1);
+            return cx.compileString(source, sourceName, 1, null);
+        } finally {
+            cx.setOptimizationLevel(savedLevel);
+        }
+    }
+
+    // compile to classes and save in cache dir
+    private Script compileClasses(Context cx, String source, String sourceName,
+            String hash) {
+
+        CompilerEnvirons env = new CompilerEnvirons();
+        env.initFromContext(cx);
+        ClassCompiler compiler = new ClassCompiler(env);
+        Object[] classes = compiler.compileToClassFiles(source, sourceName, 1,
+                CLASS_PREFIX + hash);
+
+        // write to temp file then rename so other processes never see partial file
+        File file = new File(cacheDir, hash + ".jar");
+        File tmp = new File(cacheDir, hash + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            JarOutputStream jar = new JarOutputStream(new FileOutputStream(tmp));
+            try {
+                for (int i = 0; i < classes.length; i += 2) {
+                    String name = (String) classes[i];
+                    jar.putNextEntry(new JarEntry(name.replace('.', '/') + ".class"));
+                    jar.write((byte[]) classes[i + 1]);
+                }
+            } finally {
+                jar.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException ioe) {
+            log.warn("Error saving compiled classes for " + sourceName + " to " + file, ioe);
+            tmp.delete();
+        }
+        return defineClasses(cx, hash, classes);
+    }
+
+    // load classes from cache dir, return null if not found or error
+    private Script loadClasses(Context cx, String hash) {
+        if (cacheDir == null) {
+            return null;
+        }
+        File file = new File(cacheDir, hash + ".jar");
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            JarInputStream jar = new JarInputStream(new FileInputStream(file));
+            try {
+                List<Object> classes = new ArrayList<Object>();
+                byte[] buf = new byte[4096];
+                for (JarEntry entry; (entry = jar.getNextJarEntry()) != null; ) {
+                    String name = entry.getName();
+                    name = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    for (int len = 0; (len = jar.read(buf)) != -1; ) {
+                        baos.write(buf, 0, len);
+                    }
+                    classes.add(name);
+                    classes.add(baos.toByteArray());
+                }
+                log.debug("loaded compiled classes: " + file);
+                return defineClasses(cx, hash, classes.toArray());
+            } finally {
+                jar.close();
+            }
+        } catch (Exception e) {
+            log.warn("Error loading compiled classes from " + file + ", will compile", e);
+            return null;
+        }
+    }
+
+    // define classes as returned by ClassCompiler, first is main script class
+    private Script defineClasses(Context cx, String hash, Object[] classes) {
+        GeneratedClassLoader loader = cx.createClassLoader(
+                ScriptCache.class.getClassLoader());
+        loaders.put(hash, (ClassLoader) loader);
+        Class<?> main = null;
+        for (int i = 0; i < classes.length; i += 2) {
+            Class<?> c = loader.defineClass((String) classes[i], (byte[]) classes[i + 1]);
+            if (main == null) {
+                main = c;
+            }
+        }
+        loader.linkClass(main);
+        try {
+            return (Script) main.getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            throw new IllegalStateException("Error creating script: " + main, e);
+        }
+    }
+
+    // SHA-1 of everything that affects generated classes
+    private String hash(Context cx, int level, String contents, String sourceName,
+            String generatorVersion) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            String[] parts = {cx.getImplementationVersion(),
+                    String.valueOf(level),
+                    String.valueOf(cx.getInstructionObserverThreshold() > 0), sourceName,
+                    generatorVersion, contents};
+            for (String part : parts) {
+                md.update(String.valueOf(part).getBytes("UTF-8"));
+                md.update((byte) 0);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static class Entry {
+        FutureTask<Script> task;
+        long lastModified;
+        String hash;
+        Entry(FutureTask<Script> task, long lastModified, String hash) {
+            this.task = task;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        // wait for compile, rethrow any compile error
+        Script get() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return task.get();
+                    } catch (InterruptedException ie) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Independent runtime within a {@link Generation}, with its own sealed
+ * shared global scope and {@link Cirrus}.  Each request thread is pinned
+ * to one shard so threads on different shards never touch the same
+ * scope, controllers or templates.  Counts requests so that balance
+ * across shards can be checked.
+ * @author Joel Hockey
+ */
+public class Shard {
+    private int index;
+    private ScriptableObject scope;
+    private Cirrus cirrus;
+    private AtomicLong requests = new AtomicLong();
+    private AtomicInteger active = new AtomicInteger();
+
+    Shard(int index, ScriptableObject scope, Cirrus cirrus) {
+        this.index = index;
+        this.scope = scope;
+        this.cirrus = cirrus;
+    }
+
+    /** @return shard index within generation, starts at 0 */
+    public int getIndex() {
+        return index;
+    }
+
+    /** @return sealed shared global scope */
+    public ScriptableObject getScope() {
+        return scope;
+    }
+
+    /** @return sealed cirrus object */
+    public Cirrus getCirrus() {
+        return cirrus;
+    }
+
+    /** @return number of requests started on this shard */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /** @return number of requests currently running or suspended on this shard */
+    public int getActive() {
+        return active.get();
+    }
+
+    /** Record start of request, must be followed by {@link #end()}. */
+    public void begin() {
+        requests.incrementAndGet();
+        active.incrementAndGet();
+    }
+
+    /** Record end of request. */
+    public void end() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * Create lightweight request scope.  Global names are found via
+     * prototype, any new top-level vars stay in request scope.
+     * @param cx current context
+     * @return new request scope
+     */
+    public Scriptable newRequestScope(Context cx) {
+        Scriptable requestScope = cx.newObject(scope);
+        requestScope.setPrototype(scope);
+        requestScope.setParentScope(null);
+        return requestScope;
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + index + ": requests=" + requests.get()
+                + ", active=" + active.get();
+    }
+}
@@ -0,0 +1,215 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.TreeSet;
+
+import javax.servlet.ServletConfig;
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.RegExpEngine;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.serialize.ScriptableInputStream;
+import org.mozilla.javascript.serialize.ScriptableOutputStream;
+
+/**
+ * Snapshot of a fully loaded shared scope and {@link Cirrus} saved to
+ * a file using rhino serialization.  On the next start, if none of the
+ * application sources have changed, the scope is restored from the
+ * snapshot rather than loading and executing all scripts and templates.
+ * <p>
+ * Standard objects and 'cirrus' are not saved, references to
+ * them are resolved against the new scope.  Compiled functions are
+ * resolved from classes saved by {@link ScriptCache}, so snapshots
+ * require a script cache dir, or interpreted mode.  Any error restoring
+ * is logged and the scope is built as normal.
+ * @author Joel Hockey
+ */
+public class Snapshot {
+    private static final Log log = LogFactory.getLog(Snapshot.class);
+
+    private File file;
+
+    /**
+     * Create snapshot.
+     * @param file snapshot file
+     */
+    public Snapshot(File file) {
+        this.file = file;
+    }
+
+    /** @return snapshot file */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Restore scope and cirrus from snapshot if it exists and
+     * sources have not changed.  Must be called with a Context
+     * associated with the current thread.
+     * @param servletConfig servlet config
+     * @param dataSource datasource for DB
+     * @param scripts compiled scripts
+     * @return restored cirrus, its parent scope is the new shared scope,
+     * or null if snapshot not exists, is stale, or error restoring
+     */
+    public Cirrus restore(ServletConfig servletConfig, DataSource dataSource,
+            final ScriptCache scripts) {
+
+        if (!file.exists()) {
+            return null;
+        }
+        final Context cx = Context.getCurrentContext();
+        try {
+            ScriptableObject scope = new ImporterTopLevel(cx, true);
+            Cirrus cirrus = new Cirrus(scope, servletConfig, dataSource, scripts, false);
+            String hash = sourcesHash(cirrus, scripts);
+            InputStream ins = new BufferedInputStream(new FileInputStream(file));
+            try {
+                ScriptableInputStream in = new ScriptableInputStream(ins, scope) {
+                    @Override
+                    protected Class<?> resolveClass(ObjectStreamClass desc)
+                            throws IOException, ClassNotFoundException {
+                        if (desc.getName().startsWith(ScriptCache.CLASS_PREFIX)) {
+                            return scripts.loadClass(cx, desc.getName());
+                        }
+                        return super.resolveClass(desc);
+                    }
+                    @Override
+                    protected Object resolveObject(Object obj) throws IOException {
+                        if (obj instanceof RegExpSource) {
+                            RegExpSource re = (RegExpSource) obj;
+                            return ScriptRuntime.getRegExpProxy(cx)
+                                    .compileRegExp(cx, re.source, re.flags);
+                        }
+                        return super.resolveObject(obj);
+                    }
+                };
+                if (!hash.equals(in.readUTF())) {
+                    log.info("sources changed, not using snapshot: " + file);
+                    return null;
+                }
+                cirrus.readSnapshot(in);
+            } finally {
+                ins.close();
+            }
+            log.info("restored snapshot: " + file);
+            return cirrus;
+        } catch (Exception e) {
+            log.warn("Error restoring snapshot: " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Save scope and cirrus to snapshot file.  Errors are logged.
+     * Must be called before scope is sealed.
+     * @param cirrus loaded cirrus, its parent scope is saved
+     * @param scripts compiled scripts
+     */
+    public void save(Cirrus cirrus, ScriptCache scripts) {
+        Scriptable scope = cirrus.getParentScope();
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            String hash = sourcesHash(cirrus, scripts);
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            OutputStream outs = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                ScriptableOutputStream out = new ScriptableOutputStream(outs, scope) {
+                    @Override
+                    protected Object replaceObject(Object obj) throws IOException {
+                        if (obj instanceof RegExpEngine) {
+                            return new RegExpSource((RegExpEngine) obj);
+                        }
+                        return super.replaceObject(obj);
+                    }
+                };
+                out.addExcludedName("cirrus");
+                out.writeUTF(hash);
+                cirrus.writeSnapshot(out);
+                out.close();
+            } finally {
+                outs.close();
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Could not rename " + tmp + " to " + file);
+                }
+            }
+            log.info("saved snapshot: " + file);
+        } catch (Exception e) {
+            log.warn("Error saving snapshot: " + file, e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Compiled regexp written as source and flags.  Regexp engine
+     * holds matcher state which is not serializable.
+     */
+    private static class RegExpSource implements Serializable {
+        private static final long serialVersionUID = 0x3C81F0A5E6D2B947L;
+        String source;
+        String flags = "";
+
+        RegExpSource(RegExpEngine re) {
+            source = re.source();
+            if (re.global()) flags += "g";
+            if (re.ignoreCase()) flags += "i";
+            if (re.multiline()) flags += "m";
+        }
+    }
+
+    // SHA-1 of all sources, public paths and script cache settings
+    private static String sourcesHash(Cirrus cirrus, ScriptCache scripts)
+            throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(String.valueOf(scripts.getOptimizationLevel()).getBytes("UTF-8"));
+            md.update(String.valueOf(scripts.getGeneratedOptimizationLevel()).getBytes("UTF-8"));
+            md.update(String.valueOf(scripts.getCacheDir()).getBytes("UTF-8"));
+            md.update(String.valueOf(Cirrus.CONTEXT_FACTORY
+                    .getInstructionObserverThreshold()).getBytes("UTF-8"));
+            // public paths are read by '/app/cirrus.js'
+            for (String path : new TreeSet<String>(cirrus.getResourcePaths("/public/"))) {
+                md.update(path.getBytes("UTF-8"));
+            }
+            for (String path : cirrus.sourcePaths()) {
+                md.update(path.getBytes("UTF-8"));
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                cirrus.readFileIntoStream(path, baos);
+                md.update(baos.toByteArray());
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
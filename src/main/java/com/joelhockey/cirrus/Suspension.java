@@ -0,0 +1,432 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextAction;
+import org.mozilla.javascript.ContinuationPending;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Request suspended by 'cirrus.suspend(task)' or 'cirrus.sleep(millis)'
+ * while the task runs on another thread.  Used when config
+ * 'continuations' is set, which runs scripts in the rhino interpreter
+ * so that the request can be captured as a continuation.
+ * <p>
+ * While suspended, the request's DB, {@link Deadline} and {@link Env}
+ * are detached from the servlet thread.  A DB connection in auto-commit
+ * mode is returned to the pool and opened again for the task and when
+ * the request resumes, so suspended requests do not hold connections.
+ * If Jetty 6 continuations are available, the servlet thread is released
+ * and Jetty dispatches the request again when the task is done.  Servlet
+ * API 2.5 has no async support, so other containers keep the servlet
+ * thread waiting and the request resumes in the same thread.  If the
+ * task is not done by the request's deadline, the request resumes anyway
+ * and 'cirrus.suspend' throws 503, so the error page is rendered and
+ * 'finally' blocks clean up.
+ * <p>
+ * Rhino runs javascript 'finally' blocks when a continuation is
+ * captured, and again when the request completes.  'finally' blocks
+ * should use 'cirrus.suspending()' to skip cleanup while suspending.
+ * <p>
+ * Requests not started by {@link CirrusServlet} with continuations,
+ * such as tests calling 'cirrus.service' directly or requests in
+ * virtual threads, run the task in the current thread.  Tasks of
+ * suspended requests run in virtual threads if available.
+ * @author Joel Hockey
+ */
+public class Suspension {
+    private static final Log log = LogFactory.getLog(Suspension.class);
+
+    /** Request attribute holding suspended request. */
+    public static final String ATTRIBUTE = Suspension.class.getName();
+    /** Max millis a request is suspended if it has no deadline. */
+    public static final long MAX_SUSPEND = 300000;
+
+    // jetty 6 continuations, loaded by reflection, null if not available
+    private static Method GET_CONTINUATION;
+    private static Method SUSPEND;
+    private static Method RESUME;
+    static {
+        try {
+            Class<?> support = Class.forName("org.mortbay.util.ajax.ContinuationSupport");
+            Class<?> continuation = Class.forName("org.mortbay.util.ajax.Continuation");
+            GET_CONTINUATION = support.getMethod("getContinuation",
+                    HttpServletRequest.class, Object.class);
+            SUSPEND = continuation.getMethod("suspend", long.class);
+            RESUME = continuation.getMethod("resume");
+        } catch (Exception e) {
+            log.debug("jetty continuations not available: " + e);
+        }
+    }
+
+    private static ExecutorService TASKS;
+    private static ScheduledExecutorService TIMER;
+
+    private long sleep;
+    private Callable<?> task;
+    private Future<?> future;
+    private Object continuation;
+    private Shard shard;
+    private Scriptable scope;
+    private DB db;
+    private boolean reopen;
+    private Deadline deadline;
+    private Object jetty;
+    private volatile boolean done;
+    private Object result;
+
+    private Suspension(long sleep, Callable<?> task) {
+        this.sleep = sleep;
+        this.task = task;
+    }
+
+    /** Start threads which run tasks of suspended requests. */
+    public static synchronized void start() {
+        if (TASKS == null) {
+            TASKS = VirtualThreads.newExecutor("cirrus-task");
+            TIMER = Executors.newSingleThreadScheduledExecutor();
+        }
+    }
+
+    /** Stop threads started by {@link #start()}. */
+    public static synchronized void shutdown() {
+        if (TASKS != null) {
+            TASKS.shutdownNow();
+            TIMER.shutdownNow();
+            TASKS = null;
+            TIMER = null;
+        }
+    }
+
+    /**
+     * @param req request
+     * @return suspended request being dispatched again, or null
+     */
+    public static Suspension forRequest(HttpServletRequest req) {
+        return (Suspension) req.getAttribute(ATTRIBUTE);
+    }
+
+    /** @return shard the request started on */
+    public Shard getShard() {
+        return shard;
+    }
+
+    /**
+     * Suspend current request until task is done.  Called by
+     * 'cirrus.suspendRequest'.
+     * @param cx current context
+     * @param scope scope used to wrap result
+     * @param task number of millis to sleep, or Callable or function to run
+     * @return result of task, or {@link Failure} if task threw an error
+     * @throws ContinuationPending to suspend request
+     */
+    public static Object suspend(Context cx, Scriptable scope, Object task) {
+        Suspension suspension;
+        Object javaTask = Context.jsToJava(task, Object.class);
+        if (task instanceof Number) {
+            suspension = new Suspension(Math.max(0, ((Number) task).longValue()), null);
+        } else if (task instanceof Function) {
+            suspension = new Suspension(0, callable((Function) task));
+        } else if (javaTask instanceof Callable) {
+            suspension = new Suspension(0, (Callable<?>) javaTask);
+        } else {
+            throw ScriptRuntime.typeError("suspend: task must be millis, function or Callable");
+        }
+
+        // not started with continuations, run in this thread
+        if (cx.getThreadLocal(Suspension.class) == null) {
+            if (suspension.task == null) {
+                try {
+                    Thread.sleep(suspension.sleep);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            suspension.run();
+            return Context.javaToJS(suspension.result, scope);
+        }
+        ContinuationPending pending = cx.captureContinuation();
+        pending.setApplicationState(suspension);
+        cx.putThreadLocal(Suspension.class, suspension);
+        throw pending;
+    }
+
+    /**
+     * @param cx current context
+     * @return true while 'finally' blocks run because request is suspending
+     */
+    public static boolean isSuspending(Context cx) {
+        return cx.getThreadLocal(Suspension.class) instanceof Suspension;
+    }
+
+    /**
+     * Call 'cirrus.service' so that it can be suspended.
+     * @param cx current context
+     * @param shard shard used by request
+     * @param scope request scope
+     * @param service 'cirrus.service' function
+     * @param req request
+     * @param res response
+     * @return result of service
+     */
+    public static Object call(Context cx, Shard shard, Scriptable scope,
+            Function service, HttpServletRequest req, HttpServletResponse res) {
+
+        cx.putThreadLocal(Suspension.class, Boolean.TRUE);
+        try {
+            return cx.callFunctionWithContinuations(service, scope, new Object[] {req, res});
+        } catch (ContinuationPending pending) {
+            return suspended(cx, pending, shard, scope, req, res);
+        } finally {
+            cx.removeThreadLocal(Suspension.class);
+        }
+    }
+
+    /**
+     * Continue request when dispatched again by container.
+     * @param cx current context
+     * @param req request
+     * @param res response
+     * @return result of service
+     */
+    public Object redispatch(Context cx, HttpServletRequest req, HttpServletResponse res) {
+        if (jetty != null) {
+            try {
+                // jetty returns immediately and clears pending state
+                SUSPEND.invoke(jetty, Long.valueOf(0));
+            } catch (Exception e) {
+                log.warn("Error resetting continuation", e);
+            }
+        }
+        return resume(cx, req, res);
+    }
+
+    // continue request in current thread, suspend throws 503 if task not done
+    private Object resume(Context cx, HttpServletRequest req,
+            HttpServletResponse res) {
+
+        req.removeAttribute(ATTRIBUTE);
+        Object value;
+        if (!done) {
+            log.warn("suspended request timed out " + req.getMethod() + " " + req.getRequestURI());
+            future.cancel(true);
+            if (!reopen) {
+                db.close();
+            }
+            // task may still use its DB, request gets a new DB for thread
+            // and runs its 'finally' blocks to release permit and env
+            value = new Failure(deadline.halt());
+        } else {
+            value = result;
+            if (reopen) {
+                try {
+                    db.open();
+                } catch (SQLException e) {
+                    value = new Failure(e);
+                }
+            }
+            shard.getCirrus().attachDB(db);
+        }
+        Deadline.attach(deadline);
+        cx.putThreadLocal(Suspension.class, Boolean.TRUE);
+        try {
+            return cx.resumeContinuation(continuation, scope,
+                    Context.javaToJS(value, scope));
+        } catch (ContinuationPending pending) {
+            return suspended(cx, pending, shard, scope, req, res);
+        } finally {
+            cx.removeThreadLocal(Suspension.class);
+        }
+    }
+
+    // detach request from thread, start task and wait for it to finish
+    private static Object suspended(Context cx, ContinuationPending pending,
+            Shard shard, Scriptable scope, HttpServletRequest req,
+            HttpServletResponse res) {
+
+        Suspension suspension = (Suspension) pending.getApplicationState();
+        suspension.continuation = pending.getContinuation();
+        suspension.shard = shard;
+        suspension.scope = scope;
+        suspension.db = shard.getCirrus().detachDB();
+        suspension.reopen = release(suspension.db);
+        suspension.deadline = Deadline.detach();
+        Env.detach();
+        long timeout = Math.max(1, Math.min(MAX_SUSPEND,
+                suspension.deadline.remainingMillis()));
+
+        req.setAttribute(ATTRIBUTE, suspension);
+        try {
+            suspension.jetty = GET_CONTINUATION != null
+                    ? GET_CONTINUATION.invoke(null, req, null) : null;
+        } catch (Exception e) {
+            log.warn("Error getting continuation", e);
+        }
+        suspension.future = suspension.sleep > 0
+                ? TIMER.schedule(suspension.runnable(), suspension.sleep, TimeUnit.MILLISECONDS)
+                : TASKS.submit(suspension.runnable());
+
+        if (suspension.jetty != null) {
+            try {
+                // jetty nio connector throws RetryRequest to release thread
+                SUSPEND.invoke(suspension.jetty, Long.valueOf(timeout));
+            } catch (InvocationTargetException ite) {
+                // resume is ignored if task finished before suspend
+                if (suspension.done) {
+                    suspension.resumeJetty();
+                }
+                if (ite.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ite.getCause();
+                }
+                throw new IllegalStateException(ite.getCause());
+            } catch (IllegalAccessException iae) {
+                throw new IllegalStateException(iae);
+            }
+        } else {
+            suspension.await(timeout);
+        }
+        return suspension.resume(cx, req, res);
+    }
+
+    // close auto-commit connection while suspended, true if closed
+    private static boolean release(DB db) {
+        Connection dbconn = db.getConnection();
+        try {
+            if (dbconn == null || !dbconn.getAutoCommit()) {
+                return false;
+            }
+        } catch (SQLException e) {
+            log.warn("Error checking auto-commit", e);
+            return false;
+        }
+        db.close();
+        return true;
+    }
+
+    // call javascript function in current thread
+    private static Callable<Object> callable(final Function fn) {
+        return new Callable<Object>() {
+            public Object call() {
+                return Cirrus.CONTEXT_FACTORY.call(new ContextAction() {
+                    public Object run(Context cx) {
+                        Scriptable scope = ScriptableObject.getTopLevelScope(fn);
+                        return fn.call(cx, scope, scope, ScriptRuntime.emptyArgs);
+                    }
+                });
+            }
+        };
+    }
+
+    // run task with request's DB in task thread
+    private Runnable runnable() {
+        return new Runnable() {
+            public void run() {
+                Cirrus cirrus = shard.getCirrus();
+                cirrus.attachDB(db);
+                try {
+                    if (reopen && task != null) {
+                        db.open();
+                    }
+                    Suspension.this.run();
+                } catch (SQLException e) {
+                    result = new Failure(e);
+                } finally {
+                    if (reopen) {
+                        db.close();
+                    }
+                    cirrus.detachDB();
+                }
+                synchronized (Suspension.this) {
+                    done = true;
+                    Suspension.this.notifyAll();
+                }
+                resumeJetty();
+            }
+        };
+    }
+
+    // run task (if any) in current thread
+    private void run() {
+        if (task == null) {
+            return;
+        }
+        try {
+            result = task.call();
+        } catch (Throwable t) {
+            result = new Failure(t);
+        }
+    }
+
+    // wait for task when container cannot release thread
+    private synchronized void await(long timeout) {
+        long end = System.currentTimeMillis() + timeout;
+        try {
+            for (long wait = timeout; !done && wait > 0; wait = end - System.currentTimeMillis()) {
+                wait(wait);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void resumeJetty() {
+        if (jetty != null) {
+            try {
+                RESUME.invoke(jetty);
+            } catch (Exception e) {
+                log.warn("Error resuming continuation", e);
+            }
+        }
+    }
+
+    /**
+     * Error thrown by task.  Returned to 'cirrus.suspend' which throws
+     * it again in the request.
+     */
+    public static class Failure {
+        private Throwable cause;
+        private Object error;
+
+        Failure(Throwable t) {
+            cause = t;
+            error = t instanceof JavaScriptException
+                    ? ((JavaScriptException) t).getValue() : t;
+        }
+
+        /** @return value thrown by javascript task, or java exception */
+        public Object getError() {
+            return error;
+        }
+
+        /**
+         * Throw error again in request.  Javascript values such as the
+         * status from 'cirrus.halt' are caught as they were thrown,
+         * rather than as wrapped java objects.
+         * @throws Throwable error thrown by task
+         */
+        public void rethrow() throws Throwable {
+            throw cause;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.Token;
+import org.mozilla.javascript.ast.Assignment;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.ElementGet;
+import org.mozilla.javascript.ast.EmptyExpression;
+import org.mozilla.javascript.ast.ExpressionStatement;
+import org.mozilla.javascript.ast.FunctionCall;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.IfStatement;
+import org.mozilla.javascript.ast.KeywordLiteral;
+import org.mozilla.javascript.ast.Name;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.PropertyGet;
+import org.mozilla.javascript.ast.ReturnStatement;
+import org.mozilla.javascript.ast.StringLiteral;
+import org.mozilla.javascript.ast.UnaryExpression;
+import org.mozilla.javascript.ast.WithStatement;
+
+/**
+ * Flattens a template, its prototypes and partials into a single
+ * render function 'JST.pages[name]'.  Templates rendered through the
+ * prototype chain look up each function with 'this.f(out, cx)' after
+ * checking 'hasOwnProperty', and look up partials in JST.templates
+ * each time they are rendered.  Here functions are resolved once,
+ * the same way as the prototype chain, and their bodies inlined:
+ * <pre>
+ * if (!JST.templates["default"].hasOwnProperty("body")) { ... }; this.body(out, cx);
+ * { ...body from "user.list"... }
+ * </pre>
+ * Partials with flattened source shorter than {@link #INLINE_LIMIT}
+ * are also inlined.  Variables declared in inlined functions are
+ * renamed with suffix '$depth' so they do not clash with variables of
+ * enclosing functions.
+ * <p>
+ * Functions are not inlined if they use 'return' or declare functions,
+ * partials are not inlined if they also use 'this', and functions are
+ * not inlined into themselves.  These keep the original call.
+ * @author Joel Hockey
+ */
+public class TemplatePage {
+    /** Changes when generated source changes, part of script cache key. */
+    public static final String VERSION = "1";
+
+    /** Partials with longer flattened source are called, not inlined. */
+    public static final int INLINE_LIMIT = 4096;
+
+    private Map<String, Template> templates;
+    private Set<String> inlining = new HashSet<String>();
+
+    private TemplatePage(Map<String, Template> templates) {
+        this.templates = templates;
+    }
+
+    /**
+     * Return javascript which sets 'JST.pages[name]' to flattened
+     * render function for template.
+     * @param cx current context
+     * @param name name of template
+     * @param sources javascript generated by JST.parse for template and
+     * all templates it uses, by template name
+     * @return javascript for page, or null if template has no render
+     * function or any source has syntax errors
+     */
+    public static String flatten(Context cx, String name, Map<String, String> sources) {
+        CompilerEnvirons env = new CompilerEnvirons();
+        env.initFromContext(cx);
+        env.setErrorReporter(TemplateScope.ERRORS);
+        Map<String, Template> templates = new HashMap<String, Template>();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            try {
+                AstRoot root = new Parser(env, TemplateScope.ERRORS).parse(
+                        source.getValue(), "template", 1);
+                templates.put(source.getKey(),
+                        new Template(source.getKey(), source.getValue(), root));
+            } catch (EvaluatorException ee) {
+                return null; // error reported when template compiled
+            }
+        }
+
+        TemplatePage page = new TemplatePage(templates);
+        TemplateFunction render = page.resolve(name, "render");
+        if (render == null) {
+            return null;
+        }
+        Body body = page.body(render, name, 0);
+        return "JST.pages[\"" + name + "\"] = function (out, cx) { with (cx) "
+                + body.text + " };\n";
+    }
+
+    // function f for 'this.f(out, cx)' where 'this' is template self
+    private TemplateFunction resolve(String self, String f) {
+        Set<String> seen = new HashSet<String>();
+        for (Template t = templates.get(self); t != null && seen.add(t.name);
+                t = templates.get(t.proto)) {
+            FunctionNode fn = t.functions.get(f);
+            fn = fn != null ? fn : t.innerFunctions.get(f);
+            if (fn != null) {
+                return new TemplateFunction(t, f, fn);
+            }
+        }
+        return null;
+    }
+
+    // source of block inside 'with (cx)' of function, with functions
+    // called through 'this' and partials inlined
+    private Body body(final TemplateFunction function, final String self, final int depth) {
+        final Body body = new Body();
+        final FunctionNode fn = function.node;
+        final String source = function.owner.source;
+        final List<Edit> edits = new ArrayList<Edit>();
+        final Set<AstNode> done = new HashSet<AstNode>();
+        String key = self + " " + function.owner.name + "." + function.name;
+        inlining.add(key);
+
+        AstNode block = ((WithStatement) fn.getBody().getFirstChild()).getStatement();
+        block.visit(new NodeVisitor() {
+            public boolean visit(AstNode node) {
+                if (done.contains(node)) {
+                    return false;
+                }
+                String f = innerFunction(node);
+                if (f != null) {
+                    // 'if (!...hasOwnProperty("f")) { ... }; this.f(out, cx);'
+                    AstNode call = (AstNode) node.getNext().getNext();
+                    done.add(call);
+                    Body inner = inline(resolve(self, f), self, depth + 1);
+                    if (inner != null && inner.inlinable) {
+                        edits.add(new Edit(node.getAbsolutePosition(),
+                                call.getAbsolutePosition() + call.getLength(), inner.text));
+                        body.usesThis |= inner.usesThis;
+                        return false;
+                    }
+                    body.usesThis = true; // original call kept
+                    return true;
+                }
+                String partial = partial(node);
+                if (partial != null) {
+                    // 'JST.templates["partial"].render(out, cx);'
+                    Body inner = templates.containsKey(partial)
+                            ? inline(resolve(partial, "render"), partial, depth + 1) : null;
+                    if (inner != null && inner.inlinable && !inner.usesThis
+                            && inner.text.length() <= INLINE_LIMIT) {
+                        edits.add(new Edit(node.getAbsolutePosition(),
+                                node.getAbsolutePosition() + node.getLength(), inner.text));
+                    }
+                    return false;
+                }
+
+                if (node instanceof KeywordLiteral && node.getType() == Token.THIS) {
+                    body.usesThis |= enclosingFunction(node) == fn;
+                } else if (node instanceof ReturnStatement) {
+                    body.inlinable &= enclosingFunction(node) != fn;
+                } else if (node instanceof FunctionNode) {
+                    body.inlinable &= ((FunctionNode) node).getFunctionType()
+                            != FunctionNode.FUNCTION_STATEMENT;
+                } else if (depth > 0 && node instanceof Name) {
+                    // rename variables, 'out' and 'cx' same as in page
+                    Name name = (Name) node;
+                    String id = name.getIdentifier();
+                    if (name.getDefiningScope() == fn && TemplateScope.isReference(name)
+                            && !"out".equals(id) && !"cx".equals(id)) {
+                        edits.add(new Edit(name.getAbsolutePosition(),
+                                name.getAbsolutePosition() + name.getLength(), id + "$" + depth));
+                    }
+                }
+                return true;
+            }
+        });
+        inlining.remove(key);
+
+        Collections.sort(edits, new Comparator<Edit>() {
+            public int compare(Edit e1, Edit e2) {
+                return e1.start - e2.start;
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        int pos = block.getAbsolutePosition();
+        for (Edit edit : edits) {
+            sb.append(source, pos, edit.start).append(edit.text);
+            pos = edit.end;
+        }
+        body.text = sb.append(source, pos, block.getAbsolutePosition() + block.getLength())
+                .toString();
+        return body;
+    }
+
+    // body of function to inline, or null if not found or already inlining
+    private Body inline(TemplateFunction function, String self, int depth) {
+        if (function == null || !TemplateScope.isTemplateFunction(function.node)
+                || inlining.contains(self + " " + function.owner.name + "." + function.name)) {
+            return null;
+        }
+        return body(function, self, depth);
+    }
+
+    // 'f' from 'if (!JST.templates[n].hasOwnProperty("f")) { ... }; this.f(out, cx);'
+    private static String innerFunction(AstNode node) {
+        if (!(node instanceof IfStatement) || ((IfStatement) node).getElsePart() != null) {
+            return null;
+        }
+        AstNode condition = ((IfStatement) node).getCondition();
+        if (!(condition instanceof UnaryExpression)
+                || ((UnaryExpression) condition).getOperator() != Token.NOT) {
+            return null;
+        }
+        AstNode has = ((UnaryExpression) condition).getOperand();
+        if (!(has instanceof FunctionCall)
+                || !(((FunctionCall) has).getTarget() instanceof PropertyGet)
+                || templateName(((PropertyGet) ((FunctionCall) has).getTarget()).getTarget()) == null
+                || !"hasOwnProperty".equals(((PropertyGet) ((FunctionCall) has).getTarget())
+                        .getProperty().getIdentifier())
+                || ((FunctionCall) has).getArguments().size() != 1
+                || !(((FunctionCall) has).getArguments().get(0) instanceof StringLiteral)) {
+            return null;
+        }
+        String f = ((StringLiteral) ((FunctionCall) has).getArguments().get(0)).getValue();
+        Object empty = node.getNext();
+        Object call = empty instanceof EmptyExpression ? ((EmptyExpression) empty).getNext() : null;
+        if (!(call instanceof ExpressionStatement)) {
+            return null;
+        }
+        AstNode expr = ((ExpressionStatement) call).getExpression();
+        return expr instanceof FunctionCall && isTemplateCall((FunctionCall) expr)
+                && ((FunctionCall) expr).getTarget() instanceof PropertyGet
+                && ((PropertyGet) ((FunctionCall) expr).getTarget()).getTarget() instanceof KeywordLiteral
+                && ((PropertyGet) ((FunctionCall) expr).getTarget()).getTarget().getType() == Token.THIS
+                && f.equals(((PropertyGet) ((FunctionCall) expr).getTarget()).getProperty().getIdentifier())
+                ? f : null;
+    }
+
+    // 'partial' from 'JST.templates["partial"].render(out, cx);'
+    private static String partial(AstNode node) {
+        if (!(node instanceof ExpressionStatement)
+                || !(((ExpressionStatement) node).getExpression() instanceof FunctionCall)) {
+            return null;
+        }
+        FunctionCall call = (FunctionCall) ((ExpressionStatement) node).getExpression();
+        if (!isTemplateCall(call) || !(call.getTarget() instanceof PropertyGet)) {
+            return null;
+        }
+        PropertyGet pg = (PropertyGet) call.getTarget();
+        return "render".equals(pg.getProperty().getIdentifier()) ? templateName(pg.getTarget()) : null;
+    }
+
+    // call with args '(out, cx)'
+    private static boolean isTemplateCall(FunctionCall call) {
+        List<AstNode> args = call.getArguments();
+        return args.size() == 2 && TemplateScope.isName(args.get(0), "out")
+                && TemplateScope.isName(args.get(1), "cx");
+    }
+
+    // 'name' from 'JST.templates["name"]'
+    private static String templateName(AstNode node) {
+        if (!(node instanceof ElementGet)
+                || !(((ElementGet) node).getElement() instanceof StringLiteral)
+                || !(((ElementGet) node).getTarget() instanceof PropertyGet)) {
+            return null;
+        }
+        PropertyGet pg = (PropertyGet) ((ElementGet) node).getTarget();
+        return TemplateScope.isName(pg.getTarget(), "JST")
+                && "templates".equals(pg.getProperty().getIdentifier())
+                ? ((StringLiteral) ((ElementGet) node).getElement()).getValue() : null;
+    }
+
+    private static AstNode enclosingFunction(AstNode node) {
+        for (node = node.getParent(); node != null && !(node instanceof FunctionNode); ) {
+            node = node.getParent();
+        }
+        return node;
+    }
+
+    /** Template parsed from javascript generated by JST.parse. */
+    private static class Template {
+        String name;
+        String source;
+        String proto;
+        // 'JST.templates[name].f = function ...' at top level
+        Map<String, FunctionNode> functions = new HashMap<String, FunctionNode>();
+        // same but only assigned when enclosing function is called
+        Map<String, FunctionNode> innerFunctions = new HashMap<String, FunctionNode>();
+
+        Template(String name, String source, AstRoot root) {
+            this.name = name;
+            this.source = source;
+            root.visit(new NodeVisitor() {
+                public boolean visit(AstNode node) {
+                    if (node instanceof FunctionCall && proto == null) {
+                        // 'JST.get(name, proto)'
+                        FunctionCall call = (FunctionCall) node;
+                        if (call.getTarget() instanceof PropertyGet
+                                && TemplateScope.isName(((PropertyGet) call.getTarget()).getTarget(), "JST")
+                                && "get".equals(((PropertyGet) call.getTarget()).getProperty().getIdentifier())
+                                && call.getArguments().size() == 2
+                                && call.getArguments().get(1) instanceof StringLiteral) {
+                            proto = ((StringLiteral) call.getArguments().get(1)).getValue();
+                        }
+                    } else if (node instanceof Assignment && node.getType() == Token.ASSIGN
+                            && ((Assignment) node).getLeft() instanceof PropertyGet
+                            && ((Assignment) node).getRight() instanceof FunctionNode) {
+                        PropertyGet left = (PropertyGet) ((Assignment) node).getLeft();
+                        if (Template.this.name.equals(templateName(left.getTarget()))) {
+                            String f = left.getProperty().getIdentifier();
+                            FunctionNode fn = (FunctionNode) ((Assignment) node).getRight();
+                            if (enclosingFunction(node) == null) {
+                                functions.put(f, fn);
+                            } else if (!innerFunctions.containsKey(f)) {
+                                innerFunctions.put(f, fn);
+                            }
+                        }
+                    }
+                    return true;
+                }
+            });
+        }
+    }
+
+    /** Function f defined by owner template. */
+    private static class TemplateFunction {
+        Template owner;
+        String name;
+        FunctionNode node;
+
+        TemplateFunction(Template owner, String name, FunctionNode node) {
+            this.owner = owner;
+            this.name = name;
+            this.node = node;
+        }
+    }
+
+    /** Flattened source of function body. */
+    private static class Body {
+        String text;
+        boolean inlinable = true;
+        boolean usesThis;
+    }
+
+    /** Replace source from start to end with text. */
+    private static class Edit {
+        int start;
+        int end;
+        String text;
+
+        Edit(int start, int end, String text) {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Token;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.Assignment;
+import org.mozilla.javascript.ast.BreakStatement;
+import org.mozilla.javascript.ast.ContinueStatement;
+import org.mozilla.javascript.ast.ForInLoop;
+import org.mozilla.javascript.ast.FunctionCall;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.Name;
+import org.mozilla.javascript.ast.NewExpression;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.ObjectProperty;
+import org.mozilla.javascript.ast.PropertyGet;
+import org.mozilla.javascript.ast.Scope;
+import org.mozilla.javascript.ast.UnaryExpression;
+import org.mozilla.javascript.ast.WithStatement;
+import org.mozilla.javascript.ast.XmlPropRef;
+
+/**
+ * Removes 'with (cx)' from template functions generated by JST.parse.
+ * Rhino cannot optimize names inside 'with', so each name in a template
+ * would be looked up through the scope chain on every use.  Instead the
+ * free names of each template function are found when the template is
+ * compiled and bound once per call as locals:
+ * <pre>
+ * function (out, cx) { with (cx) { ... h(name, out); ...
+ * function (out, cx) { var h = "h" in cx ? cx.h : JST$name("h"), name = ...; { ...
+ * </pre>
+ * Locals are added on the same line so line numbers do not change.
+ * Names not in cx are looked up by global 'JST$name' in the scope of
+ * the current request, as they would be with 'with (cx)'.
+ * <p>
+ * Only reading names gives the same result.  Templates keep 'with' if
+ * any function assigns, deletes or iterates into a free name, e.g. in an
+ * {eval} block, uses eval, calls a free function which is not a global
+ * (it may be a method of cx), or uses a name declared by an enclosing
+ * template function.  A free name found in neither cx nor the request
+ * scope throws ReferenceError, as it would with 'with (cx)'.
+ * @author Joel Hockey
+ */
+public class TemplateScope {
+    /** Changes when generated source changes, part of script cache key. */
+    public static final String VERSION = "2";
+
+    /**
+     * Replace 'with (cx)' in template functions with locals.
+     * @param cx current context
+     * @param source javascript generated by JST.parse
+     * @param scope global scope, used to check that called functions
+     * are globals
+     * @return source with locals, or source unchanged if 'with' is
+     * needed or source has syntax errors
+     */
+    public static String bind(Context cx, String source, Scriptable scope) {
+        CompilerEnvirons env = new CompilerEnvirons();
+        env.initFromContext(cx);
+        env.setErrorReporter(ERRORS);
+        AstRoot root;
+        try {
+            root = new Parser(env, ERRORS).parse(source, "template", 1);
+        } catch (EvaluatorException ee) {
+            return source; // error reported when compiled
+        }
+
+        // find template functions and their free names
+        final List<FunctionNode> functions = new ArrayList<FunctionNode>();
+        root.visit(new NodeVisitor() {
+            public boolean visit(AstNode node) {
+                if (isTemplateFunction(node)) {
+                    functions.add((FunctionNode) node);
+                }
+                return true;
+            }
+        });
+        List<Set<String>> names = new ArrayList<Set<String>>();
+        for (FunctionNode fn : functions) {
+            Set<String> free = freeNames(fn, scope);
+            if (free == null) {
+                return source;
+            }
+            names.add(free);
+        }
+
+        // replace 'with (cx) ' before block with locals, from end of source
+        StringBuilder sb = new StringBuilder(source);
+        for (int i = functions.size() - 1; i >= 0; i--) {
+            WithStatement with = (WithStatement) functions.get(i).getBody().getFirstChild();
+            StringBuilder vars = new StringBuilder();
+            for (String name : names.get(i)) {
+                vars.append(vars.length() == 0 ? "var " : ", ").append(name)
+                        .append(" = \"").append(name).append("\" in cx ? cx.")
+                        .append(name).append(" : JST$name(\"").append(name).append("\")");
+            }
+            if (vars.length() > 0) {
+                vars.append("; ");
+            }
+            sb.replace(with.getAbsolutePosition(),
+                    with.getStatement().getAbsolutePosition(), vars.toString());
+        }
+        return sb.toString();
+    }
+
+    // 'function (out, cx) { with (cx) { ... } }' as generated by JST.parse
+    static boolean isTemplateFunction(AstNode node) {
+        if (!(node instanceof FunctionNode)) {
+            return false;
+        }
+        FunctionNode fn = (FunctionNode) node;
+        List<AstNode> params = fn.getParams();
+        if (params.size() != 2 || !isName(params.get(0), "out")
+                || !isName(params.get(1), "cx")) {
+            return false;
+        }
+        AstNode first = (AstNode) fn.getBody().getFirstChild();
+        return first != null && first.getNext() == null
+                && first instanceof WithStatement
+                && isName(((WithStatement) first).getExpression(), "cx");
+    }
+
+    static boolean isName(AstNode node, String name) {
+        return node instanceof Name && ((Name) node).getIdentifier().equals(name);
+    }
+
+    // free names read in template function, or null if 'with' is needed
+    private static Set<String> freeNames(final FunctionNode fn, final Scriptable scope) {
+        final Set<String> names = new TreeSet<String>();
+        final boolean[] needsWith = {false};
+        fn.getBody().visit(new NodeVisitor() {
+            public boolean visit(AstNode node) {
+                if (node != fn && isTemplateFunction(node)) {
+                    return false; // bound separately
+                }
+                if (!(node instanceof Name) || !isReference((Name) node)) {
+                    return true;
+                }
+                Name name = (Name) node;
+                String id = name.getIdentifier();
+                Scope defining = name.getDefiningScope();
+                if (defining != null && !(defining instanceof AstRoot)) {
+                    // declared in this function is fine, in an enclosing
+                    // template function would come after cx with 'with'
+                    needsWith[0] |= !isInside(defining, fn);
+                } else if ("eval".equals(id) || isWrite(name)
+                        || isCall(name) && !ScriptableObject.hasProperty(scope, id)) {
+                    needsWith[0] = true;
+                } else if (!"arguments".equals(id) && !"JST".equals(id)) {
+                    names.add(id);
+                }
+                return true;
+            }
+        });
+        return needsWith[0] ? null : names;
+    }
+
+    // false for property names and labels
+    static boolean isReference(Name name) {
+        AstNode parent = name.getParent();
+        return !(parent instanceof PropertyGet && ((PropertyGet) parent).getProperty() == name
+                || parent instanceof ObjectProperty && ((ObjectProperty) parent).getLeft() == name
+                || parent instanceof XmlPropRef && ((XmlPropRef) parent).getPropName() == name
+                || parent instanceof BreakStatement || parent instanceof ContinueStatement
+                || parent instanceof FunctionNode && ((FunctionNode) parent).getFunctionName() == name);
+    }
+
+    private static boolean isWrite(Name name) {
+        AstNode parent = name.getParent();
+        if (parent instanceof Assignment) {
+            return ((Assignment) parent).getLeft() == name;
+        } else if (parent instanceof UnaryExpression) {
+            int op = ((UnaryExpression) parent).getOperator();
+            return op == Token.INC || op == Token.DEC || op == Token.DELPROP;
+        } else if (parent instanceof ForInLoop) {
+            return ((ForInLoop) parent).getIterator() == name;
+        }
+        return false;
+    }
+
+    // function called with cx as 'this' when found in cx
+    private static boolean isCall(Name name) {
+        AstNode parent = name.getParent();
+        return parent instanceof FunctionCall && !(parent instanceof NewExpression)
+                && ((FunctionCall) parent).getTarget() == name;
+    }
+
+    private static boolean isInside(AstNode node, AstNode ancestor) {
+        for (; node != null; node = node.getParent()) {
+            if (node == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // syntax errors are reported when source is compiled
+    static final ErrorReporter ERRORS = new ErrorReporter() {
+        public void warning(String message, String sourceName, int line,
+                String lineSource, int lineOffset) {
+        }
+
+        public void error(String message, String sourceName, int line,
+                String lineSource, int lineOffset) {
+            throw runtimeError(message, sourceName, line, lineSource, lineOffset);
+        }
+
+        public EvaluatorException runtimeError(String message, String sourceName,
+                int line, String lineSource, int lineOffset) {
+            return new EvaluatorException(message, sourceName, line, lineSource, lineOffset);
+        }
+    };
+
+    /**
+     * Global 'JST$name(name)' function used by templates without
+     * 'with (cx)' for names not in cx.  Looks up name in the top call
+     * scope, which is the request scope, rather than the shared global
+     * scope that jst.js was loaded into.
+     */
+    static class NameFunction extends BaseFunction {
+        private static final long serialVersionUID = 0x3E71A9C5520D84B6L;
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj,
+                Object[] args) {
+            String name = ScriptRuntime.toString(args, 0);
+            Scriptable top = ScriptRuntime.hasTopCall(cx)
+                    ? ScriptRuntime.getTopCallScope(cx) : getParentScope();
+            Object result = ScriptableObject.getProperty(top, name);
+            if (result == Scriptable.NOT_FOUND) {
+                throw ScriptRuntime.notFoundError(top, name);
+            }
+            return result;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "JST$name";
+        }
+    }
+}
@@ -0,0 +1,167 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.FunctionCall;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.Name;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.PropertyGet;
+import org.mozilla.javascript.ast.StringLiteral;
+
+/**
+ * Static text of a template, encoded as UTF-8 once when the template is
+ * loaded.  Templates write text with 'out.write("...")'.  Those strings
+ * are moved out of the template functions into TemplateText objects so
+ * that {@link TemplateWriter} can write the bytes directly to the
+ * response stream, and only values need encoding for each request:
+ * <pre>
+ * JST.templates["x"].render = function (out, cx) { ... out.write("&lt;p>"); ...
+ * (function (JST$text) { JST.templates["x"].render = function (out, cx) { ... out.write(JST$text[0]); ...
+ * })([new com.joelhockey.cirrus.TemplateText("&lt;p>")]);
+ * </pre>
+ * Line numbers do not change.  As a javascript value, TemplateText is
+ * its string, so templates can still write to any 'out'.
+ * @author Joel Hockey
+ */
+public class TemplateText extends ScriptableObject {
+    private static final long serialVersionUID = 0x1F6A93C4E05B72D8L;
+
+    /** Changes when generated source changes, part of script cache key. */
+    public static final String VERSION = "1";
+
+    private final String text;
+    private final byte[] utf8;
+
+    /**
+     * @param text static text
+     */
+    public TemplateText(String text) {
+        this.text = text;
+        try {
+            this.utf8 = text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee); // UTF-8 always supported
+        }
+    }
+
+    /** @return text as UTF-8, must not be modified */
+    public byte[] getBytes() {
+        return utf8;
+    }
+
+    @Override
+    public String getClassName() {
+        return "TemplateText";
+    }
+
+    @Override
+    public Object getDefaultValue(Class<?> hint) {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * Move string literals written by template functions into
+     * TemplateText objects.
+     * @param cx current context
+     * @param source javascript generated by JST.parse
+     * @return source with text moved, or source unchanged if it has no
+     * text or has syntax errors
+     */
+    public static String extract(Context cx, String source) {
+        CompilerEnvirons env = new CompilerEnvirons();
+        env.initFromContext(cx);
+        env.setErrorReporter(TemplateScope.ERRORS);
+        AstRoot root;
+        try {
+            root = new Parser(env, TemplateScope.ERRORS).parse(source, "template", 1);
+        } catch (EvaluatorException ee) {
+            return source; // error reported when compiled
+        }
+
+        // 'out.write("...")' where out is param of template function
+        final List<StringLiteral> literals = new ArrayList<StringLiteral>();
+        root.visit(new NodeVisitor() {
+            public boolean visit(AstNode node) {
+                if (node instanceof FunctionCall && isTextWrite((FunctionCall) node)) {
+                    literals.add((StringLiteral) ((FunctionCall) node).getArguments().get(0));
+                }
+                return true;
+            }
+        });
+        if (literals.isEmpty()) {
+            return source;
+        }
+
+        // replace from end of source, same text uses same object
+        List<String> texts = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        int[] indexes = new int[literals.size()];
+        for (int i = 0; i < literals.size(); i++) {
+            StringLiteral literal = literals.get(i);
+            indexes[i] = values.indexOf(literal.getValue());
+            if (indexes[i] == -1) {
+                indexes[i] = values.size();
+                values.add(literal.getValue());
+                texts.add(source.substring(literal.getAbsolutePosition(),
+                        literal.getAbsolutePosition() + literal.getLength()));
+            }
+        }
+        StringBuilder sb = new StringBuilder(source);
+        for (int i = literals.size() - 1; i >= 0; i--) {
+            // keep newlines from line continuations in literal
+            int start = literals.get(i).getAbsolutePosition();
+            int end = start + literals.get(i).getLength();
+            StringBuilder ref = new StringBuilder("JST$text[" + indexes[i] + "]");
+            for (int j = start; j < end; j++) {
+                if (source.charAt(j) == '\n') {
+                    ref.append('\n');
+                }
+            }
+            sb.replace(start, end, ref.toString());
+        }
+        sb.insert(0, "(function (JST$text) { ").append("\n})([");
+        for (int i = 0; i < texts.size(); i++) {
+            sb.append(i == 0 ? "" : ", ").append("new com.joelhockey.cirrus.TemplateText(")
+                    .append(texts.get(i)).append(")");
+        }
+        return sb.append("]);\n").toString();
+    }
+
+    private static boolean isTextWrite(FunctionCall call) {
+        if (!(call.getTarget() instanceof PropertyGet) || call.getArguments().size() != 1
+                || !(call.getArguments().get(0) instanceof StringLiteral)) {
+            return false;
+        }
+        PropertyGet pg = (PropertyGet) call.getTarget();
+        if (!(pg.getTarget() instanceof Name)
+                || !"out".equals(((Name) pg.getTarget()).getIdentifier())
+                || !"write".equals(pg.getProperty().getIdentifier())) {
+            return false;
+        }
+        // 'out' must be param of template function
+        AstNode scope = ((Name) pg.getTarget()).getDefiningScope();
+        if (!(scope instanceof FunctionNode)) {
+            return false;
+        }
+        List<AstNode> params = ((FunctionNode) scope).getParams();
+        return params.size() == 2 && TemplateScope.isName(params.get(0), "out")
+                && TemplateScope.isName(params.get(1), "cx");
+    }
+}
@@ -0,0 +1,360 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+/**
+ * 'out' passed to compiled templates.  Templates write all text with
+ * 'out.write(s)'.  When out is a java Writer, every call goes through
+ * LiveConnect which looks up and chooses between the overloads of
+ * 'write' using reflection.  Here 'write' is a java function so the
+ * template bytecode calls it directly.
+ * <p>
+ * Other properties such as 'flush' or 'print' are those of the
+ * wrapped writer, which is also what java methods get when 'out' is
+ * passed to them.
+ * <p>
+ * When rendering to a UTF-8 response, the writer uses the response
+ * {@link OutputStream}.  {@link TemplateText} is written as its
+ * pre-encoded bytes and only other values are encoded.
+ * <p>
+ * The global function 'h' used by templates for '${value}' writes the
+ * html-escaped value directly to this writer, see
+ * {@link #writeEscaped(Object)}.
+ * @author Joel Hockey
+ */
+public class TemplateWriter extends ScriptableObject implements Wrapper {
+    private static final long serialVersionUID = 0x3B7D52E09A6C14F8L;
+
+    private static final WriteFunction WRITE = new WriteFunction();
+    private static final TemplateText AMP = new TemplateText("&amp;");
+    private static final TemplateText LT = new TemplateText("&lt;");
+    private static final TemplateText GT = new TemplateText("&gt;");
+    private static final TemplateText QUOT = new TemplateText("&quot;");
+    private static final TemplateText APOS = new TemplateText("&#39;");
+
+    private transient Writer writer;
+    private transient OutputStream stream;
+    private transient byte[] buf;
+    private transient char[] digits;
+    private transient Scriptable javaObject;
+
+    /** @param writer writer for rendered template */
+    public TemplateWriter(Writer writer) {
+        this.writer = writer;
+    }
+
+    /** @param stream stream for rendered template, written as UTF-8 */
+    public TemplateWriter(OutputStream stream) {
+        this.stream = stream;
+        this.buf = new byte[1024];
+    }
+
+    /**
+     * Return writer for response.  Uses response stream if response
+     * charset is UTF-8 and 'getWriter' has not already been called.
+     * Scripts can still call 'env.response.getWriter()' afterwards,
+     * see {@link Env.Response}.
+     * @param response response with content type already set
+     * @return writer for response
+     * @throws IOException if error getting response writer or stream
+     */
+    public static TemplateWriter forResponse(HttpServletResponse response)
+            throws IOException {
+        if ("UTF-8".equalsIgnoreCase(response.getCharacterEncoding())) {
+            try {
+                return new TemplateWriter(response.getOutputStream());
+            } catch (IllegalStateException ise) {
+                // fall through and use response writer
+            }
+        }
+        return new TemplateWriter(response.getWriter());
+    }
+
+    /** @return writer for rendered template, null if using stream */
+    public Writer getWriter() {
+        return writer;
+    }
+
+    /**
+     * Write value as string.
+     * @param value value to write, converted using javascript rules
+     * @throws IOException if error writing
+     */
+    public void write(Object value) throws IOException {
+        if (value instanceof TemplateText && stream != null) {
+            stream.write(((TemplateText) value).getBytes());
+        } else {
+            String s = value instanceof String ? (String) value : ScriptRuntime.toString(value);
+            write(s, 0, s.length());
+        }
+    }
+
+    /**
+     * Write value html-escaped, same as 'h(value, out)' in jst.js.
+     * Nothing is written for false values such as undefined, null, 0
+     * or "".  Strings are written in runs between chars which must be
+     * escaped, and integers without converting to string.
+     * @param value value to write
+     * @throws IOException if error writing
+     */
+    public void writeEscaped(Object value) throws IOException {
+        if (!ScriptRuntime.toBoolean(value)) {
+            return;
+        } else if (value instanceof String) {
+            writeEscaped((String) value);
+        } else if (value instanceof Number) {
+            writeNumber(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            write("true", 0, 4);
+        } else {
+            writeEscaped(ScriptRuntime.toString(value));
+        }
+    }
+
+    private void writeEscaped(String s) throws IOException {
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            TemplateText entity = entity(s.charAt(i));
+            if (entity != null) {
+                write(s, start, i - start);
+                write(entity);
+                start = i + 1;
+            }
+        }
+        write(s, start, s.length() - start);
+    }
+
+    // integers as digits, others converted using javascript rules
+    private void writeNumber(double d) throws IOException {
+        int value = (int) d;
+        if (value != d || value == Integer.MIN_VALUE) {
+            String s = ScriptRuntime.numberToString(d, 10);
+            write(s, 0, s.length());
+            return;
+        }
+        if (digits == null) {
+            digits = new char[11];
+        }
+        int pos = digits.length;
+        for (int v = Math.abs(value); pos == digits.length || v != 0; v /= 10) {
+            digits[--pos] = (char) ('0' + v % 10);
+        }
+        if (value < 0) {
+            digits[--pos] = '-';
+        }
+        if (writer != null) {
+            writer.write(digits, pos, digits.length - pos);
+        } else {
+            for (int i = pos; i < digits.length; i++) {
+                buf[i - pos] = (byte) digits[i];
+            }
+            stream.write(buf, 0, digits.length - pos);
+        }
+    }
+
+    /**
+     * Html-escape string.
+     * @param s string to escape
+     * @return escaped string, or s if nothing to escape
+     */
+    public static String escape(String s) {
+        StringBuilder sb = null;
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            TemplateText entity = entity(s.charAt(i));
+            if (entity != null) {
+                sb = sb != null ? sb : new StringBuilder(s.length() + 16);
+                sb.append(s, start, i).append(entity.toString());
+                start = i + 1;
+            }
+        }
+        return sb == null ? s : sb.append(s, start, s.length()).toString();
+    }
+
+    private static TemplateText entity(char c) {
+        switch (c) {
+        case '&': return AMP;
+        case '<': return LT;
+        case '>': return GT;
+        case '"': return QUOT;
+        case '\'': return APOS;
+        default: return null;
+        }
+    }
+
+    /**
+     * Write part of string.
+     * @param s string to write
+     * @param off offset of first char
+     * @param len number of chars
+     * @throws IOException if error writing
+     */
+    public void write(String s, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        } else if (writer != null) {
+            writer.write(s, off, len);
+            return;
+        }
+        // encode as UTF-8 into buf, leave room for 4 byte char
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            int n = 0;
+            for (; i < end && n <= buf.length - 4; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buf[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[n++] = (byte) (0xC0 | c >> 6);
+                    buf[n++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < end
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[n++] = (byte) (0xF0 | cp >> 18);
+                    buf[n++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    buf[n++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    buf[n++] = (byte) (0x80 | cp & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    buf[n++] = '?'; // unpaired, same as String.getBytes
+                } else {
+                    buf[n++] = (byte) (0xE0 | c >> 12);
+                    buf[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    buf[n++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            stream.write(buf, 0, n);
+        }
+    }
+
+    @Override
+    public String getClassName() {
+        return "TemplateWriter";
+    }
+
+    /** @return wrapped writer or stream */
+    public Object unwrap() {
+        return writer != null ? writer : stream;
+    }
+
+    @Override
+    public Object get(String name, Scriptable start) {
+        if ("write".equals(name)) {
+            return WRITE;
+        }
+        Object value = super.get(name, start);
+        return value != NOT_FOUND ? value : javaObject().get(name, start);
+    }
+
+    @Override
+    public boolean has(String name, Scriptable start) {
+        return "write".equals(name) || super.has(name, start)
+                || javaObject().has(name, start);
+    }
+
+    // writer or stream wrapped as java object for any other properties
+    private Scriptable javaObject() {
+        if (javaObject == null) {
+            Context cx = Context.getCurrentContext();
+            Scriptable scope = getParentScope() != null
+                    ? getParentScope() : ScriptRuntime.getTopCallScope(cx);
+            javaObject = cx.getWrapFactory().wrapAsJavaObject(cx, scope, unwrap(), null);
+        }
+        return javaObject;
+    }
+
+    /**
+     * 'out.write(s)' function.  Shared by all writers, uses 'this'.
+     */
+    static class WriteFunction extends BaseFunction {
+        private static final long serialVersionUID = 0x5E21C9A07D4B36F1L;
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj,
+                Object[] args) {
+            if (!(thisObj instanceof TemplateWriter)) {
+                throw ScriptRuntime.typeError("write: 'this' is not a TemplateWriter");
+            }
+            try {
+                ((TemplateWriter) thisObj).write(args.length > 0 ? args[0] : Undefined.instance);
+            } catch (IOException ioe) {
+                throw Context.throwAsScriptRuntimeEx(ioe);
+            }
+            return Undefined.instance;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "write";
+        }
+
+        @Override
+        public int getArity() {
+            return 1;
+        }
+    }
+
+    /**
+     * Global 'h(value, out)' function used by templates to html-escape
+     * values.  Writes directly to a TemplateWriter, otherwise same as
+     * 'h' in jst.js, calls 'out.write', or returns escaped string if no
+     * 'out'.
+     */
+    static class EscapeFunction extends BaseFunction {
+        private static final long serialVersionUID = 0x6C0E3B94A7D2185FL;
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj,
+                Object[] args) {
+            Object value = args.length > 0 ? args[0] : Undefined.instance;
+            Object out = args.length > 1 ? args[1] : Undefined.instance;
+            try {
+                if (out instanceof TemplateWriter) {
+                    ((TemplateWriter) out).writeEscaped(value);
+                    return Undefined.instance;
+                }
+            } catch (IOException ioe) {
+                throw Context.throwAsScriptRuntimeEx(ioe);
+            }
+            if (!ScriptRuntime.toBoolean(value)) {
+                return "";
+            }
+            String result = escape(ScriptRuntime.toString(value));
+            if (!ScriptRuntime.toBoolean(out)) {
+                return result;
+            }
+            Scriptable outObj = ScriptRuntime.toObject(cx, scope, out);
+            Object write = ScriptableObject.getProperty(outObj, "write");
+            if (!(write instanceof Function)) {
+                throw ScriptRuntime.typeError("h: 'out.write' is not a function");
+            }
+            ((Function) write).call(cx, scope, outObj, new Object[] {result});
+            return Undefined.instance;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "h";
+        }
+
+        @Override
+        public int getArity() {
+            return 2;
+        }
+    }
+}
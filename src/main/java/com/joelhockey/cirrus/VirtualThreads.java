@@ -0,0 +1,83 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Executors which start a new thread for each task, used for tasks of
+ * suspended requests.  With config 'virtualThreads' the container is
+ * expected to dispatch requests on virtual threads, see {@link #isVirtual()}.
+ * Virtual threads (java 21) are loaded by reflection since cirrus is
+ * built for older java.  If not available, a cached pool of daemon
+ * threads is used instead.
+ * <p>
+ * Everything cirrus keeps per thread, such as 'cirrus.db', {@link Env}
+ * and {@link Deadline}, belongs to the virtual thread rather than the
+ * carrier thread, so each request gets its own.
+ * @author Joel Hockey
+ */
+public class VirtualThreads {
+    private static final Log log = LogFactory.getLog(VirtualThreads.class);
+
+    // Executors.newVirtualThreadPerTaskExecutor, Thread.isVirtual
+    // null if not available
+    private static Method NEW_EXECUTOR;
+    private static Method IS_VIRTUAL;
+    static {
+        try {
+            NEW_EXECUTOR = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            IS_VIRTUAL = Thread.class.getMethod("isVirtual");
+        } catch (Exception e) {
+            log.debug("virtual threads not available: " + e);
+        }
+    }
+
+    /** @return true if JVM supports virtual threads */
+    public static boolean isAvailable() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /** @return true if current thread is a virtual thread */
+    public static boolean isVirtual() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return ((Boolean) IS_VIRTUAL.invoke(Thread.currentThread())).booleanValue();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param name name prefix for platform threads if virtual threads
+     * not available
+     * @return executor which runs each task in a new virtual thread, or
+     * cached pool of daemon threads
+     */
+    public static ExecutorService newExecutor(final String name) {
+        if (NEW_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_EXECUTOR.invoke(null);
+            } catch (Exception e) {
+                log.warn("Error creating virtual thread executor", e);
+            }
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
@@ -99,67 +99,35 @@ cirrus.migrate = function(version) {
  * @param response com.joelhockey.cirrus.CirrusHttpServletResponse
  */
 cirrus.service = function(request, response) {
-    var env = new this.Env();
-    // create timer, and DB object
-    env.timer = new com.joelhockey.cirrus.Timer();
-    env.timer.start();
-    cirrus.db.open(); // close in finally
+    // env reused by thread, params etc created on first use
+    // uses 'cirrus' rather than 'this' so it can be called with continuations
+    var env = cirrus.env(request, response);
+    var permit = null;
     try {
-        env.request = request;
-        env.response = response;
-        env.flash = {};
-        env.method = String(env.request.getMethod());
-        env.path = String(env.request.getRequestURI());
-        env.params = {};
-        for (var en = env.request.getParameterNames(); en.hasMoreElements();) {
-            var paramName = en.nextElement();
-            env.params[paramName] = request.getParameter(paramName);
+        // admission control before taking db connection, fast 503 if rejected
+        var route = cirrus.route(env.method, env.path);
+        permit = cirrus.admit(route.controller, route.concurrency || 0, route.queue || 0);
+        if (!permit) {
+            cirrus.error(env, 503);
+            return;
         }
-        
-        env.status = null; // optionally used for response
-        env.body = []; // optionally used for response
-        env.headers = {}; // optionally used for response
-        var result = cirrus.forward(env);
+        cirrus.db.open(); // close in finally
+        var result = cirrus.forward(env, null, route);
 
         // processing may cause env.status, env.headers, env.body to be set
         // result may be either String (for response body) or
         //   {status: Number, headers: Object, body: Array}
-        // if result has values, then merge them into env
-        // and put env values (if any) into servlet response
-        if (typeof result === "string") {
-            env.body.push(result);
-        } else if (result) {
-            if (result.status) {
-                env.status = result.status;
-            }
-            // merge result into env
-            for (var headerName in result.headers) {
-                env.headers[headerName] = result.headers[headerName];
-            }
-            if (typeof result.body === "string") {
-                env.body.push(result.body)
-            } else {
-                Array.prototype.push.apply(env.body, result.body);
-            }
-        }
-
-        // put env.status, env.headers, env.body into servlet response
-        if (env.status) {
-            response.setStatus(env.status);
-        }
-        for (var headerName in env.headers) {
-            response.addHeader(headerName, env.headers[headerName]);
-        }
-        if (env.body.length > 0) {
-            var writer = response.getWriter();
-            for each (var part in env.body) {
-                writer.write(part);
-            }
-        }
+        // put env and result values (if any) into servlet response
+        cirrus.respond(env, result);
     } finally {
-        cirrus.db.close();
-        env.timer.end(env.method + " " + env.path
-                + " " + response.getStatus());
+        // finally also runs when request is suspended
+        if (!cirrus.suspending()) {
+            cirrus.db.close();
+            permit && permit.release(response.getStatus());
+            env.timer.end(env.method + " " + env.path
+                    + " " + response.getStatus());
+            cirrus.release(env);
+        }
     }
 }
 
@@ -168,8 +136,9 @@ cirrus.service = function(request, response) {
  * Adds controller and action props to env.
  * @param env environment
  * @param requestLine optional HTTP Request-Line - e.g. 'GET /user/list'
+ * @param route optional result of cirrus.route if already found
  */
-cirrus.forward = function(env, requestLine) {
+cirrus.forward = function(env, requestLine, route) {
     var method, path;
     // read method and path from requestLine if provided
     if (requestLine) {
@@ -182,28 +151,20 @@ cirrus.forward = function(env, requestLine) {
     method = method || env.method;
     path = path || env.path;
     
-    var pathdirs = path.split("/");
-    // use 'index' as default controller and action
-    env.controller = pathdirs[1] || "index";
-    env.action = pathdirs[2] || "index";
-    
-    // use public controller if path is in public dir
-    if (this.publicPaths[env.controller]) {
-        env.controller = "public";
-    }
+    // controller, action and handler found with a single lookup
+    route = route || this.route(method, path);
+    env.controller = route.controller;
+    env.action = route.action;
 
-    var ctlr;
+    var ctlr = route.ctlr;
+    if (route.timeout) {
+        this.deadline(route.timeout);
+    }
     try {
-        try {
-            this.load("/app/controllers/" + env.controller + "_controller.js");
-            ctlr = cirrus.controllers[env.controller];
-            if (!ctlr) {
-                throw null;
-            }
-        } catch (e) {
+        if (!ctlr) {
             this.logwarn("warning, could not load ctlr=" + env.controller
-                    + ", path=" + path + ", error=" + e.message);
-            throw 404;
+                    + ", path=" + path + ", error=" + route.error);
+            this.halt(404);
         }
 
         // call before if exists - will throw exception to stop processing
@@ -224,27 +185,23 @@ cirrus.forward = function(env, requestLine) {
             }
         }
     
-        // find method handler or 405
-        var methodHandler = ctlr[method] || ctlr.$;
-        if (!methodHandler) {
-            // return 405 Method Not Allowed
+        // no method handler, return 405 Method Not Allowed
+        if (route.allow !== undefined) {
             this.logwarn("warning, no handler in ctlr=" + env.controller 
                     + " for method=" + method + ", path=" + path);
-            var allowed = [m for each (m in "OPTIONS,GET,HEAD,POST,PUT,DELETE,TRACE".split(",")) if (ctlr[m])];
-            env.response.addHeader("Allow", allowed.join(", "));
-            throw 405;
+            env.response.addHeader("Allow", route.allow);
+            this.halt(405);
         }
-        var actionHandler = methodHandler[env.action] || methodHandler.$;
-        var args = pathdirs.slice(3);
-        if (!(actionHandler instanceof Function) || actionHandler.arity !== args.length) {
+        if (!route.handler) {
             this.logwarn("warning, no action handler for method=" + method
                     + ", action=" + env.action + ", path=" + path
-                    + " got arity: " + (actionHandler && actionHandler.arity));
-            throw 404;
+                    + " with args: " + route.args.length);
+            this.halt(404);
         }
-        return actionHandler.apply(env, args);
+        return route.handler.apply(env, route.args);
 
     // error - set status and use error templates
+    // 'cirrus.halt(status)' and 'throw status' both catch status number
     } catch (e) {
         var status = 500;
         if (typeof e === "number") {
@@ -252,15 +209,51 @@ cirrus.forward = function(env, requestLine) {
         } else {
             this.logerror("internal server error", e);
         }
-        env.response.setStatus(status);
-        if (status >= 400) { // only show error page for 4xx, 5xx
-            env.jst("errors", String(status));
-        }
+        this.error(env, status);
     } finally {
-        ctlr && ctlr.after && ctlr.after.call(env);
+        ctlr && ctlr.after && !this.suspending() && ctlr.after.call(env);
+    }
+};
+
+/**
+ * Set response status and render error template such as 'errors/503'.
+ * @param env environment
+ * @param status HTTP status, error page only shown for 4xx, 5xx
+ */
+cirrus.error = function(env, status) {
+    env.response.setStatus(status);
+    if (status >= 400) {
+        env.jst("errors", String(status));
     }
 };
 
+/**
+ * Suspend request until task is done.  With config 'continuations' the
+ * servlet thread is released while the task runs on another thread,
+ * otherwise the task runs in the current thread.  Task can use
+ * cirrus.db.  Must be called from controller code, not from templates
+ * or functions called by java.  Throws 503 if the request's deadline
+ * passes before the task is done.
+ * @param task function or java.util.concurrent.Callable
+ * @return result of task
+ */
+cirrus.suspend = function(task) {
+    var result = this.suspendRequest(task);
+    if (result instanceof com.joelhockey.cirrus.Suspension.Failure) {
+        result.rethrow();
+    }
+    return result;
+};
+
+/**
+ * Suspend request for specified time without using any thread.  Throws
+ * 503 if the request's deadline passes first.
+ * @param millis time to sleep
+ */
+cirrus.sleep = function(millis) {
+    this.suspend(Number(millis));
+};
+
 // cirrus.publicPaths contains all dirs and files in public root
 // if first path part or a req matches one of these, then we use public ctlr
 (function () {
@@ -273,7 +266,10 @@ cirrus.forward = function(env, requestLine) {
 })();
 
 
-/** Env is environment holding request, response, etc */
+/**
+ * Env is environment holding request, response, etc.  Each request
+ * uses a Java com.joelhockey.cirrus.Env with this prototype.
+ */
 cirrus.Env = function() {};
 
 /**
@@ -283,6 +279,8 @@ cirrus.Env = function() {};
  * [action, context], [ctlr, action, context]
  * If not specified, ctlr uses 'this.controller', action uses 'this.action'
  * and context uses 'this'.
+ * Template is written to the response stream, 'this.response.getWriter()'
+ * can still be used afterwards and writes to the same stream.
  */
 cirrus.Env.prototype.jst = function() {
     this.timer.mark("action");
@@ -297,9 +295,13 @@ cirrus.Env.prototype.jst = function() {
     var context = args[2] || this;
     
     try {
-        var template = cirrus.jst(controller + "." + action);
+        var name = controller + "." + action;
+        var template = cirrus.jst(name);
         this.response.setContentType("text/html; charset=UTF-8");
-        template.render(this.response.getWriter(), context);
+        // flattened page if available, else through template prototypes
+        var render = JST.pages[name] || template.render;
+        render.call(template, com.joelhockey.cirrus.TemplateWriter.forResponse(
+                this.response), context);
     } finally {
         this.timer.mark("view");
     }
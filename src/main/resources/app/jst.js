@@ -53,6 +53,7 @@ templates writing to a stream.
 
 var JST = {
     templates : {},
+    pages: {}, // render function of each template with prototypes flattened by cirrus
     compile: function(name, body) { eval(this.parse(name, body)); }, 
     render: function(name, cx) {
         var out = { buf: [], write: function(s) { this.buf.push(s); }};
@@ -75,7 +76,8 @@ var JST = {
         var line = 1;       // used by parser for error messages
         var linepos = 1;    // used by parser for error messages
         var toks = [];      // parser puts results in here
-        var groups;         // used by parser to store regexp matches
+        var pos = 0;        // index of next token in body
+        var len = body.length;
 
         // parser puts tokens in 'toks' array.
         // Each token is an object containing information used by generator 
@@ -86,33 +88,102 @@ var JST = {
         //  - words: value.split(), used only in opentag and closetag,
         //     e.g. ['for','(var','item','in','items)'], ['function', 'foo']
 
+        // Tokens are matched by searching 'body' from 'pos' rather than
+        // running anchored regexps on the remaining substring, so parsing
+        // is linear.  Each rule matches the same text as the regexp shown.
+        // Position of next occurrence of each string is remembered, so
+        // the same part of body is not searched again for later tokens.
+        var nextFrom = {};  // position searched from, by string
+        var nextAt = {};    // position found, or len, by string
+        var spaceEnd = 0;   // end of last run of whitespace found
+
+        // index of first s at or after i, or len
+        var next = function(s, i) {
+            if (!(nextFrom[s] <= i && i <= nextAt[s])) {
+                var at = body.indexOf(s, i);
+                nextFrom[s] = i;
+                nextAt[s] = at === -1 ? len : at;
+            }
+            return nextAt[s];
+        };
+        // same as regexp '\s'
+        var space = function(c) {
+            return c === " " || c === "\t" || c === "\n" || c === "\r"
+                || ((c < " " || c > "~") && /\s/.test(c));
+        };
+
         // parse
-        while (body.length > 0) {
-            // newline
-            if (groups = /^[ \t]*(\r?\n|\r)/.exec(body)) { 
-                toks.push({type: "newline", tok: groups[0], value: groups[0]});
+        while (pos < len) {
+            var start = pos;
+            var end;
 
-            // comment
-            } else if (groups = /^\s*{\*(.*?)\*}/.exec(body)) {
-                toks.push({type: "comment", tok: groups[0], value: groups[1]});
-            // value, opentag, closetag
-            } else if (groups = /^(\$|\s*){(\/?)([^\r\n{}]+)}/.exec(body)) {
-                var type = "opentag";
-                if (groups[1] === "$") { type = "value";
-                } else if (groups[2] === "/") { type = "closetag"; }
-                var value = groups[3].replace(/^\s+|\s+$/g, ""); // trim space
-                toks.push({type: type, tok: groups[0], 
-                    value: value, words: value.split(/\s+/)});
+            // newline: /^[ \t]*(\r?\n|\r)/
+            var q = pos;
+            while (body.charAt(q) === " " || body.charAt(q) === "\t") { q++; }
+            var c = body.charAt(q);
+            if (c === "\n" || c === "\r") {
+                end = q + (c === "\r" && body.charAt(q + 1) === "\n" ? 2 : 1);
+                var nl = body.substring(start, end);
+                toks.push({type: "newline", tok: nl, value: nl});
+                pos = end;
+                continue;
+            }
 
-            // text
-            } else if ((groups = /^[^\r\n${]+/.exec(body)) ||
-                    (groups = /^[^\r\n]+/.exec(body))) {
-                toks.push({type: "text", tok: groups[0], value: groups[0]});
-            } else {
+            // leading space of comment and tags: /^\s*/
+            if (pos >= spaceEnd) {
+                for (spaceEnd = pos; spaceEnd < len && space(body.charAt(spaceEnd)); spaceEnd++);
+            }
+            q = spaceEnd;
+
+            // comment: /^\s*{\*(.*?)\*}/
+            if (body.charAt(q) === "{" && body.charAt(q + 1) === "*") {
+                end = next("*}", q + 2);
+                if (end < next("\n", q + 2) && end < next("\r", q + 2)
+                        && end < next("\u2028", q + 2) && end < next("\u2029", q + 2)) {
+                    toks.push({type: "comment", tok: body.substring(start, end + 2),
+                        value: body.substring(q + 2, end)});
+                    pos = end + 2;
+                    continue;
+                }
+            }
+
+            // value, opentag, closetag: /^(\$|\s*){(\/?)([^\r\n{}]+)}/
+            var type = "opentag";
+            if (body.charAt(start) === "$") {
+                type = "value";
+                q = start + 1;
+            }
+            if (body.charAt(q) === "{") {
+                end = Math.min(next("\r", q + 1), next("\n", q + 1),
+                        next("{", q + 1), next("}", q + 1));
+                // '{/}' is opentag with value '/'
+                var from = q + 1;
+                if (body.charAt(from) === "/" && end > from + 1) {
+                    from++;
+                    if (type === "opentag") { type = "closetag"; }
+                }
+                if (end > from && body.charAt(end) === "}") {
+                    var value = body.substring(from, end)
+                            .replace(/^\s+|\s+$/g, ""); // trim space
+                    toks.push({type: type, tok: body.substring(start, end + 1),
+                        value: value, words: value.split(/\s+/)});
+                    pos = end + 1;
+                    continue;
+                }
+            }
+
+            // text: /^[^\r\n${]+/ or /^[^\r\n]+/
+            end = Math.min(next("\r", start), next("\n", start));
+            if (body.charAt(start) !== "$" && body.charAt(start) !== "{") {
+                end = Math.min(end, next("$", start), next("{", start));
+            }
+            if (end === start) {
                 // impossible
-                throw new Error("Could not parse: " + body);
+                throw new Error("Could not parse: " + body.substring(start));
             }
-            body = body.substring(groups[0].length);
+            var text = body.substring(start, end);
+            toks.push({type: "text", tok: text, value: text});
+            pos = end;
         }
 
         // generator variables
@@ -127,20 +198,29 @@ var JST = {
         //   JST.get(name, proto);
         var src = ['JST.get("' + name + '"); '];
         
+        // escape newlines and quotes in text
+        var escape = function(str) {
+            switch(str) {
+            case "\r\n": return "\\r\\n\\\n";
+            case '"': return '\\"';
+            case "\n": return "\\n\\\n";
+            case "\r": return "\\r\\\n";
+            }
+        };
+
         // add specified string to src.
         // first put text parts into single 'out.write' statement
         var addsrc = function(s) {
             // first push text onto src
             if (textparts.length) {
-                src.push('out.write("' + textparts.join('')
-                        .replace(/\r?\n|\r|"/g, function(str) {
-                            switch(str) {
-                            case "\r\n": return "\\r\\n\\\n";
-                            case '"': return '\\"';
-                            case "\n": return "\\n\\\n";
-                            case "\r": return "\\r\\\n";
-                            }
-                        }) + '"); ');
+                // parts are escaped separately, replacing with a function
+                // takes longer than linear time on long strings
+                for (var k = 0; k < textparts.length; k++) {
+                    if (/[\r\n"]/.test(textparts[k])) {
+                        textparts[k] = textparts[k].replace(/\r?\n|\r|"/g, escape);
+                    }
+                }
+                src.push('out.write("' + textparts.join('') + '"); ');
                 textparts = [];
             }
             src.push(s);
@@ -160,10 +240,12 @@ var JST = {
         // provide good error messages
         
         // skip blank lines at start
-        while (toks.length > 0 && toks[0].type === "newline") {
-            toks.shift();
+        var blank = 0;
+        while (blank < toks.length && toks[blank].type === "newline") {
+            blank++;
             src.push("\n");
         }
+        toks.splice(0, blank);
         
         // either set up 'prototype' or wrap toks with 'function render'
         if (toks.length > 0 && (toks[0].type === "opentag" 
@@ -181,6 +263,7 @@ var JST = {
                 value: "function render", words: ["function", "render"]});
         }
 
+        var lastText = -1;  // index of last token which is not a tag or comment
         for (var i = 0; i < toks.length; i++) {
             var tok = toks[i];
             var toptag = tagstack[tagstack.length - 1];
@@ -192,8 +275,7 @@ var JST = {
                 // check if newline is formatting only, or needs to be rendered
                 // formatting only if we are in {eval}...{/eval},
                 // or if line contains only open/close tags, or if fcount === 0
-                var j = i;
-                while (j > 0 && /^(opentag|closetag|comment)$/.test(toks[--j].type));
+                var j = Math.max(lastText, 0);
                 var tags = j < i-1 && (j === 0 || toks[j].type === "newline");
                 if (inEval || tags || fcount === 0) {
                     addsrc("\n"); // formatting only
@@ -301,13 +383,16 @@ var JST = {
                 error(true, "unrecognised token type: " + tok.type);
             }
             linepos += tok.value.length
+            if (tok.type !== "opentag" && tok.type !== "closetag" && tok.type !== "comment") {
+                lastText = i;
+            }
         }
         
         return src.join("");
     }
 }
 
-// JST relies on global method 'h' for html-escape
+// JST relies on global method 'h' for html-escape, cirrus defines 'h' in java
 var h = h || function(s, out) {
     if (!s) return ""; 
     var result = s.toString().replace(/[&<>"']/g, function(str) {
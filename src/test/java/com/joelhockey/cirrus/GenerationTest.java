@@ -0,0 +1,165 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import junit.framework.TestCase;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.EcmaError;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Generations built from the test webapp.
+ * @author Joel Hockey
+ */
+public class GenerationTest extends TestCase {
+    private MockServletConfig config = new MockServletConfig();
+
+    // build generation with scripts interpreted and no disk cache
+    private Generation build(int shards) throws Exception {
+        return Generation.build(1, shards, config, null, new ScriptCache(-1),
+                null, false, false, null, null);
+    }
+
+    // evaluate javascript in shard's scope
+    private static Object eval(Shard shard, String js) {
+        Context cx = Cirrus.CONTEXT_FACTORY.enterContext();
+        try {
+            return cx.evaluateString(shard.newRequestScope(cx), js, "test", 1, null);
+        } finally {
+            Context.exit();
+        }
+    }
+
+    public void testSealed() throws Exception {
+        Shard shard = build(1).getShard();
+        Cirrus cirrus = shard.getCirrus();
+        Scriptable controllers = (Scriptable) cirrus.get("controllers", cirrus);
+        ScriptableObject ctlr = (ScriptableObject) controllers.get("cirrustest", controllers);
+        assertTrue(ctlr.isSealed());
+        assertTrue(((ScriptableObject) ctlr.get("GET", ctlr)).isSealed());
+
+        // loaded objects shared by request threads cannot change
+        String[] writes = {
+            "cirrus.x = 1",
+            "cirrus.controllers.cirrustest.GET.action1 = null",
+            "cirrus.controllers.bulkhead.concurrency = 100",
+            "cirrus.publicPaths.x = 'x'",
+            "JST.templates.x = {}",
+            "JST.pages.x = {}",
+        };
+        for (String js : writes) {
+            try {
+                eval(shard, js);
+                fail("expected sealed: " + js);
+            } catch (EvaluatorException expected) {
+            }
+        }
+
+        // request scope still has its own vars
+        assertEquals("ok", eval(shard, "var x = 'ok'; x"));
+    }
+
+    public void testTemplateScope() throws Exception {
+        Shard shard = build(1).getShard();
+        String render = "JST.render('test.scope', %s)";
+
+        // names from cx, then request scope
+        assertEquals("cx", eval(shard, String.format(render, "{JSTScopeRequest: 'cx'}")));
+        assertEquals("request", eval(shard, "var JSTScopeRequest = 'request';"
+                + String.format(render, "{}")));
+
+        // names in neither are errors
+        try {
+            eval(shard, String.format(render, "{}"));
+            fail("expected ReferenceError");
+        } catch (EcmaError expected) {
+            assertEquals("ReferenceError", expected.getName());
+        }
+    }
+
+    public void testShardPerThread() throws Exception {
+        final Generation gen1 = build(3);
+        final Generation gen2 = build(3);
+        final int[][] shards = new int[3][];
+        Thread[] threads = new Thread[shards.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    shards[n] = new int[] {gen1.getShard().getIndex(),
+                            gen2.getShard().getIndex(), gen1.getShard().getIndex()};
+                }
+            };
+            threads[i].start();
+        }
+        Set<Integer> used = new HashSet<Integer>();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            // same shard index in every generation
+            assertEquals(shards[i][0], shards[i][1]);
+            assertEquals(shards[i][0], shards[i][2]);
+            used.add(shards[i][0]);
+        }
+        // new threads spread over shards
+        assertEquals(3, used.size());
+    }
+
+    // records thread which compiled each script
+    static class RecordingCache extends ScriptCache {
+        Map<String, String> threads = new TreeMap<String, String>();
+        RecordingCache() {
+            super(-1);
+        }
+        @Override
+        public Script compile(Context cx, String key, long lastModified,
+                String contents, String sourceName, Generator generator) {
+            synchronized (threads) {
+                threads.put(key, Thread.currentThread().getName());
+            }
+            return super.compile(cx, key, lastModified, contents, sourceName, generator);
+        }
+    }
+
+    public void testWarmup() throws Exception {
+        RecordingCache sequential = new RecordingCache();
+        Generation.build(1, 1, config, null, sequential, null, false, false, null, null);
+        RecordingCache concurrent = new RecordingCache();
+        ExecutorService executor = Executors.newFixedThreadPool(4, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "warmup");
+            }
+        });
+        try {
+            Generation gen = Generation.build(1, 1, config, null, concurrent, null,
+                    false, false, executor, null);
+            assertNotNull(eval(gen.getShard(), "cirrus.controllers.cirrustest"));
+        } finally {
+            executor.shutdown();
+        }
+
+        // same scripts compiled, all controllers and templates by warmup threads
+        assertEquals(sequential.threads.keySet(), concurrent.threads.keySet());
+        assertTrue(concurrent.threads.containsKey("/app/controllers/cirrustest_controller.js"));
+        assertTrue(concurrent.threads.containsKey("/app/views/test/hello.jst"));
+        for (Map.Entry<String, String> compiled : concurrent.threads.entrySet()) {
+            String key = compiled.getKey();
+            if (key.startsWith("/app/controllers/") && key.endsWith("_controller.js")
+                    || key.startsWith("/app/views/") && key.endsWith(".jst")) {
+                assertEquals(key, "warmup", compiled.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import org.mortbay.jetty.RetryRequest;
+import org.mortbay.util.ajax.Continuation;
+
+/**
+ * Jetty continuation used for testing.  Like the jetty nio connector,
+ * suspend releases the thread by throwing RetryRequest unless already
+ * resumed.  Test must dispatch the request again once resumed or after
+ * the suspend timeout.  Set as request attribute {@link #ATTRIBUTE}.
+ */
+public class MockContinuation implements Continuation {
+    /** Request attribute used by jetty ContinuationSupport. */
+    public static final String ATTRIBUTE = "org.mortbay.jetty.ajax.Continuation";
+
+    private boolean isNew = true;
+    private boolean pending;
+    private boolean resumed;
+    private long timeout;
+    private Object object;
+
+    public synchronized boolean suspend(long timeout) {
+        if (!pending && !resumed && timeout > 0) {
+            isNew = false;
+            pending = true;
+            this.timeout = timeout;
+            throw new RetryRequest();
+        }
+        boolean result = resumed;
+        pending = false;
+        resumed = false;
+        return result;
+    }
+    public synchronized void resume() {
+        resumed = true;
+        notifyAll();
+    }
+    public synchronized void reset() {
+        pending = false;
+        resumed = false;
+    }
+    public synchronized boolean isNew() { return isNew; }
+    public synchronized boolean isPending() { return pending; }
+    public synchronized boolean isResumed() { return resumed; }
+    public Object getObject() { return object; }
+    public void setObject(Object object) { this.object = object; }
+
+    /** @return timeout of last suspend that released thread */
+    public synchronized long getTimeout() { return timeout; }
+
+    /**
+     * Wait until resumed.
+     * @param millis max millis to wait
+     * @return true if resumed
+     * @throws InterruptedException if interrupted
+     */
+    public synchronized boolean awaitResume(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        for (long wait = millis; !resumed && wait > 0; wait = end - System.currentTimeMillis()) {
+            wait(wait);
+        }
+        return resumed;
+    }
+}
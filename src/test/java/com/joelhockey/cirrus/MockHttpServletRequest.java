@@ -54,8 +54,8 @@ public class MockHttpServletRequest implements HttpServletRequest {
 			return -1;
 		}
     }
-    public String getHeader(String name) { throw new UnsupportedOperationException(); }
-    public Enumeration getHeaderNames() { return new Vector().elements(); }
+    public String getHeader(String name) { return headers.get(name); }
+    public Enumeration getHeaderNames() { return new Vector(headers.keySet()).elements(); }
     public Enumeration getHeaders(String name) { throw new UnsupportedOperationException(); }
     public int getIntHeader(String arg0) { throw new UnsupportedOperationException(); }
     public String getMethod() { return method; }
@@ -101,7 +101,7 @@ public class MockHttpServletRequest implements HttpServletRequest {
     public String getServerName() { return "localhost"; }
     public int getServerPort() { return 80; }
     public boolean isSecure() { return false; }
-    public void removeAttribute(String name) { throw new UnsupportedOperationException(); }
+    public void removeAttribute(String name) { attribs.remove(name); }
     public void setAttribute(String name, Object value) { attribs.put(name, value); }
     public void setCharacterEncoding(String env) throws UnsupportedEncodingException { throw new UnsupportedOperationException(); }
 }
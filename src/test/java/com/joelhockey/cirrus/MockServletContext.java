@@ -12,6 +12,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.Servlet;
@@ -31,6 +32,8 @@ public class MockServletContext implements ServletContext {
 
     private Map<String, Object> attribs = new HashMap<String, Object>();
     private MockServletConfig config;
+    private File root = new File("src/test/webapp");
+    private AtomicInteger resourceCalls = new AtomicInteger();
 
     public MockServletContext(MockServletConfig config) {
         this.config = config;
@@ -39,6 +42,10 @@ public class MockServletContext implements ServletContext {
         attribs.put("javax.servlet.context.tempdir", servletTemp);
     }
     public Map<String, Object> getAttributes() { return attribs; }
+    /** @param root webapp dir, default 'src/test/webapp' */
+    public void setRoot(File root) { this.root = root; }
+    /** @return number of calls to getResource and getResourcePaths */
+    public int getResourceCalls() { return resourceCalls.get(); }
 
     public Object getAttribute(String key) { return attribs.get(key); }
     public Enumeration getAttributeNames() { return new Vector(attribs.keySet()).elements(); }
@@ -58,7 +65,8 @@ public class MockServletContext implements ServletContext {
     }
     public RequestDispatcher getRequestDispatcher(String arg0) { throw new UnsupportedOperationException(); }
     public URL getResource(String path) throws MalformedURLException {
-        File f = new File("src/test/webapp" + path);
+        resourceCalls.incrementAndGet();
+        File f = new File(root, path);
         return f.exists() ? f.toURL() : null;
     }
     public InputStream getResourceAsStream(String path) {
@@ -69,13 +77,15 @@ public class MockServletContext implements ServletContext {
         }
     }
     public Set getResourcePaths(String path) {
-        File dir = new File("src/test/webapp" + path);
+        resourceCalls.incrementAndGet();
+        File dir = new File(root, path);
         if (!dir.isDirectory()) {
             return null;
         }
         Set<String> result = new HashSet<String>();
-        for (String f : dir.list()) {
-            result.add(path + f);
+        for (File f : dir.listFiles()) {
+            // dirs have trailing slash
+            result.add(path + f.getName() + (f.isDirectory() ? "/" : ""));
         }
         return result;
     }
@@ -0,0 +1,244 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+import org.hsqldb.jdbc.jdbcDataSource;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextAction;
+import org.mozilla.javascript.Function;
+
+import com.mchange.v2.c3p0.DataSources;
+
+/**
+ * Generations built by {@link Reloader} from a copy of the test webapp
+ * which is changed while requests run.
+ * @author Joel Hockey
+ */
+public class ReloaderTest extends TestCase {
+    private File root = new File("target/reloadertest");
+    private MockServletConfig config = new MockServletConfig();
+    private DataSource dataSource;
+    private Reloader reloader;
+
+    @Override
+    protected void setUp() throws Exception {
+        dataSource = dataSource(config);
+        delete(root);
+        copy(new File("src/test/webapp").toPath(), root.toPath());
+        ((MockServletContext) config.getServletContext()).setRoot(root);
+        write("/WEB-INF/app/controllers/reload_controller.js", "1");
+    }
+
+    @Override
+    protected void tearDown() {
+        if (reloader != null) {
+            reloader.shutdown();
+        }
+        delete(root);
+    }
+
+    // in memory hsqldb bound in JNDI as 'jdbc/cirrus'
+    static DataSource dataSource(MockServletConfig config) throws Exception {
+        InitialContext ic = new InitialContext();
+        if (ic.lookup("jdbc/cirrus") == null) {
+            jdbcDataSource hsqldb = new jdbcDataSource();
+            hsqldb.setDatabase("jdbc:hsqldb:mem:cirrus");
+            hsqldb.setUser("sa");
+            ic.bind("jdbc/cirrus", DataSources.pooledDataSource(hsqldb));
+        }
+        config.getInitParameters().put("dbname", "jdbc/cirrus");
+        return Cirrus.lookupDataSource(config);
+    }
+
+    static void copy(final Path from, final Path to) throws IOException {
+        Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.createDirectories(to.resolve(from.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.copy(file, to.resolve(from.relativize(file)),
+                        StandardCopyOption.REPLACE_EXISTING);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            delete(files[i]);
+        }
+        file.delete();
+    }
+
+    // controller 'reload' with actions returning version, 'slow' takes 1s
+    private void write(String path, String version) throws IOException {
+        File file = new File(root, path);
+        long lastModified = file.lastModified();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(("cirrus.controllers.reload = { GET: {\n"
+                    + "    index: function() { return 'v" + version + "'; },\n"
+                    + "    slow: function() { java.lang.Thread.sleep(1000); return 'slow v"
+                    + version + "'; }\n"
+                    + "}};\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        // timestamp always changes
+        file.setLastModified(Math.max(lastModified + 2000, file.lastModified()));
+    }
+
+    private Reloader start(boolean frozen) throws Exception {
+        config.getInitParameters().put("frozen", String.valueOf(frozen));
+        reloader = new Reloader(config, dataSource, new ScriptCache(-1));
+        reloader.start(null);
+        return reloader;
+    }
+
+    // run request in shard, as CirrusServlet does
+    static String service(final Shard shard, String path) {
+        final MockHttpServletRequest req = new MockHttpServletRequest("GET", path);
+        final MockHttpServletResponse res = new MockHttpServletResponse();
+        shard.begin();
+        try {
+            Cirrus.CONTEXT_FACTORY.call(new ContextAction() {
+                public Object run(Context cx) {
+                    Cirrus cirrus = shard.getCirrus();
+                    Function service = (Function) cirrus.get("service", cirrus);
+                    return service.call(cx, shard.newRequestScope(cx), cirrus,
+                            new Object[] {req, res});
+                }
+            });
+        } finally {
+            Deadline.current().clear();
+            shard.end();
+        }
+        return res.getStatus() + " " + res.getResponse();
+    }
+
+    // wait up to 10s for generation other than gen
+    private Generation awaitSwap(Generation gen) throws InterruptedException {
+        for (int i = 0; i < 100 && reloader.getGeneration() == gen; i++) {
+            Thread.sleep(100);
+        }
+        return reloader.getGeneration();
+    }
+
+    public void testSwap() throws Exception {
+        start(false);
+        final Generation gen1 = reloader.getGeneration();
+        assertEquals("200 v1", service(gen1.getShard(), "/reload"));
+
+        // request in flight while file changes and new generation is swapped in
+        final String[] slow = new String[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                slow[0] = service(gen1.getShard(), "/reload/slow");
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+        write("/WEB-INF/app/controllers/reload_controller.js", "2");
+        Generation gen2 = awaitSwap(gen1);
+        assertNotSame(gen1, gen2);
+        assertTrue("swapped while request in flight", thread.isAlive());
+        assertEquals(1, gen1.getShard().getActive());
+
+        // new requests use new generation, in-flight request finishes on old
+        assertEquals("200 v2", service(gen2.getShard(), "/reload"));
+        thread.join();
+        assertEquals("200 slow v1", slow[0]);
+        assertEquals(0, gen1.getShard().getActive());
+    }
+
+    public void testFrozen() throws Exception {
+        start(true);
+        Generation gen = reloader.getGeneration();
+        MockServletContext context = (MockServletContext) config.getServletContext();
+        int calls = context.getResourceCalls();
+
+        // requests for controllers, templates and missing files never look at files
+        for (int i = 0; i < 2; i++) {
+            assertEquals("200 v1", service(gen.getShard(), "/reload"));
+            assertEquals("200 jst.servlet.", service(gen.getShard(), "/cirrustest/jst_writer"));
+            assertTrue(service(gen.getShard(), "/missing").startsWith("404 "));
+        }
+        assertEquals(calls, context.getResourceCalls());
+
+        // changes are not seen
+        write("/WEB-INF/app/controllers/reload_controller.js", "2");
+        Thread.sleep(1000);
+        assertSame(gen, reloader.getGeneration());
+        assertEquals("200 v1", service(gen.getShard(), "/reload"));
+        assertEquals(calls, context.getResourceCalls());
+    }
+
+    // wait up to 10s for path, skipping other changes
+    private static boolean awaitChange(BlockingQueue<String> changed, String path)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        for (String p; (p = changed.poll(end - System.currentTimeMillis(),
+                TimeUnit.MILLISECONDS)) != null; ) {
+            if (p.equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void testWatcher() throws Exception {
+        // records changed paths rather than building
+        final BlockingQueue<String> changed = new LinkedBlockingQueue<String>();
+        Reloader recorder = new Reloader(config, dataSource, new ScriptCache(-1)) {
+            @Override
+            public void fileChanged(String path) {
+                changed.add(path);
+            }
+        };
+        FileWatcher watcher = new FileWatcher(config.getServletContext(), recorder);
+        assertFalse(watcher.isScan());
+        watcher.start();
+        try {
+            String ctlr = "/app/controllers/reload_controller.js";
+            write("/WEB-INF" + ctlr, "2");
+            assertTrue(awaitChange(changed, ctlr));
+
+            // new dirs are watched
+            File dir = new File(root, "/WEB-INF/app/views/reload");
+            dir.mkdir();
+            assertTrue(awaitChange(changed, "/app/views/reload"));
+            new FileOutputStream(new File(dir, "index.jst")).close();
+            assertTrue(awaitChange(changed, "/app/views/reload/index.jst"));
+
+            new File(root, "/WEB-INF" + ctlr).delete();
+            assertTrue(awaitChange(changed, ctlr));
+        } finally {
+            watcher.stop();
+        }
+    }
+}
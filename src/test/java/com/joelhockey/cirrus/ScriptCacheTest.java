@@ -0,0 +1,193 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+/**
+ * Compiled scripts shared by threads, saved to and loaded from cache dir.
+ * @author Joel Hockey
+ */
+public class ScriptCacheTest extends TestCase {
+    private File dir = new File("target/scriptcachetest");
+    private Context cx;
+
+    // contents is javascript, counts calls
+    static class CountingGenerator implements ScriptCache.Generator {
+        String version;
+        volatile int count;
+        CountingGenerator(String version) {
+            this.version = version;
+        }
+        public String getVersion() {
+            return version;
+        }
+        public String generate(Context cx, String contents) {
+            count++;
+            return contents;
+        }
+    }
+
+    @Override
+    protected void setUp() {
+        delete(dir);
+        cx = Cirrus.CONTEXT_FACTORY.enterContext();
+    }
+
+    @Override
+    protected void tearDown() {
+        Context.exit();
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            delete(files[i]);
+        }
+        file.delete();
+    }
+
+    // names of files in cache dir
+    private Set<String> files() {
+        return new TreeSet<String>(Arrays.asList(dir.list()));
+    }
+
+    private Object exec(Script script) {
+        return script.exec(cx, cx.initStandardObjects());
+    }
+
+    public void testSingleFlight() throws Exception {
+        // slow generator, so all threads ask while first is compiling
+        final CountingGenerator gen = new CountingGenerator("1") {
+            @Override
+            public String generate(Context cx, String contents) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.generate(cx, contents);
+            }
+        };
+        final ScriptCache cache = new ScriptCache(-1);
+        final Script[] scripts = new Script[8];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[scripts.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Context cx = Cirrus.CONTEXT_FACTORY.enterContext();
+                    try {
+                        start.await();
+                        scripts[n] = cache.compile(cx, "/a.jst", 1, "'a'", "a.jst", gen);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        Context.exit();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, gen.count);
+        for (Script script : scripts) {
+            assertNotNull(script);
+            assertSame(scripts[0], script);
+        }
+
+        // compiled again only when source changes
+        assertSame(scripts[0], cache.compile(cx, "/a.jst", 1, "'a'", "a.jst", gen));
+        assertEquals(1, gen.count);
+        assertNull(cache.get("/a.jst", 2));
+        assertEquals("b", exec(cache.compile(cx, "/a.jst", 2, "'b'", "a.jst", gen)));
+        assertEquals(2, gen.count);
+    }
+
+    public void testReloadFromDisk() throws Exception {
+        CountingGenerator gen = new CountingGenerator("1");
+        ScriptCache cache = new ScriptCache(9, dir);
+        assertEquals("a", exec(cache.compile(cx, "/a.jst", 1, "'a'", "a.jst", gen)));
+        assertEquals(1, gen.count);
+        assertEquals(Arrays.asList(cache.getHash("/a.jst") + ".jar"),
+                Arrays.asList(dir.list()));
+
+        // new cache, e.g. after restart, loads classes without generating
+        cache = new ScriptCache(9, dir);
+        Script script = cache.compile(cx, "/a.jst", 1, "'a'", "a.jst", gen);
+        assertEquals("a", exec(script));
+        assertEquals(1, gen.count);
+        assertSame(script, cache.get("/a.jst", 1));
+
+        // unknown generator version is never saved
+        CountingGenerator unknown = new CountingGenerator(null);
+        cache = new ScriptCache(9, dir);
+        assertEquals("b", exec(cache.compile(cx, "/b.jst", 1, "'b'", "b.jst", unknown)));
+        assertEquals(1, files().size());
+    }
+
+    public void testHashMiss() throws Exception {
+        CountingGenerator gen = new CountingGenerator("1");
+        new ScriptCache(9, dir).compile(cx, "/a.jst", 1, "'a'", "a.jst", gen);
+        assertEquals(1, gen.count);
+
+        // different optimization level
+        new ScriptCache(9, 1, dir).compile(cx, "/a.jst", 1, "'a'", "a.jst", gen);
+        assertEquals(2, gen.count);
+
+        // different generator version, e.g. jst.js changed
+        CountingGenerator gen2 = new CountingGenerator("2");
+        new ScriptCache(9, dir).compile(cx, "/a.jst", 1, "'a'", "a.jst", gen2);
+        assertEquals(1, gen2.count);
+
+        // different contents
+        ScriptCache cache = new ScriptCache(9, dir);
+        assertEquals("b", exec(cache.compile(cx, "/a.jst", 1, "'b'", "a.jst", gen)));
+        assertEquals(3, gen.count);
+        assertEquals(4, files().size());
+
+        // all found again
+        cache = new ScriptCache(9, 1, dir);
+        cache.compile(cx, "/a.jst", 1, "'a'", "a.jst", gen);
+        cache = new ScriptCache(9, dir);
+        cache.compile(cx, "/a.jst", 1, "'a'", "a.jst", gen2);
+        cache.compile(cx, "/a.jst", 2, "'b'", "a.jst", gen);
+        assertEquals(3, gen.count);
+        assertEquals(1, gen2.count);
+    }
+
+    public void testPrune() throws Exception {
+        CountingGenerator gen = new CountingGenerator("1");
+        ScriptCache cache = new ScriptCache(9, dir);
+        cache.compile(cx, "/a.jst", 1, "'a'", "a.jst", gen);
+        cache.compile(cx, "/b.jst", 1, "'b'", "b.jst", gen);
+        String a1 = cache.getHash("/a.jst") + ".jar";
+        String b = cache.getHash("/b.jst") + ".jar";
+
+        // a.jst changed, other files in dir are not jars
+        cache.compile(cx, "/a.jst", 2, "'a2'", "a.jst", gen);
+        String a2 = cache.getHash("/a.jst") + ".jar";
+        new FileOutputStream(new File(dir, "other.txt")).close();
+        assertEquals(new TreeSet<String>(Arrays.asList(a1, a2, b, "other.txt")), files());
+
+        cache.prune();
+        assertEquals(new TreeSet<String>(Arrays.asList(a2, b, "other.txt")), files());
+        assertEquals("a2", exec(cache.get("/a.jst", 2)));
+    }
+}
@@ -0,0 +1,162 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+/**
+ * Generations restored from {@link Snapshot} of a copy of the test webapp.
+ * @author Joel Hockey
+ */
+public class SnapshotTest extends TestCase {
+    private static final String CTLR = "/app/controllers/snap_controller.js";
+    private File root = new File("target/snapshottest");
+    private File file = new File("target/snapshottest.bin");
+    private MockServletConfig config = new MockServletConfig();
+    private DataSource dataSource;
+
+    // counts compiles of controller
+    static class CountingCache extends ScriptCache {
+        int count;
+        CountingCache() {
+            super(-1);
+        }
+        @Override
+        public Script compile(Context cx, String key, long lastModified,
+                String contents, String sourceName, Generator generator) {
+            if (key.equals(CTLR)) {
+                count++;
+            }
+            return super.compile(cx, key, lastModified, contents, sourceName, generator);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        dataSource = ReloaderTest.dataSource(config);
+        ReloaderTest.delete(root);
+        file.delete();
+        ReloaderTest.copy(new File("src/test/webapp").toPath(), root.toPath());
+        ((MockServletContext) config.getServletContext()).setRoot(root);
+        write("1");
+    }
+
+    @Override
+    protected void tearDown() {
+        ReloaderTest.delete(root);
+        file.delete();
+    }
+
+    // controller 'snap' returning version, and results of regexps
+    private void write(String version) throws IOException {
+        File ctlr = new File(root, "/WEB-INF" + CTLR);
+        FileOutputStream out = new FileOutputStream(ctlr);
+        try {
+            out.write(("(function() {\n"
+                    + "    var word = /^\\w\\d$/i;\n"
+                    + "    cirrus.controllers.snap = { GET: {\n"
+                    + "        index: function() { return 'v" + version + "'; },\n"
+                    + "        re: function() {\n"
+                    + "            return [word.test('A1'), word.test('11x'), /^a+b$/i.test('AAB'),\n"
+                    + "                'a-b-c'.replace(/-/g, '+')].join();\n"
+                    + "        }\n"
+                    + "    }};\n"
+                    + "})();\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    // build generation with snapshot
+    private Shard build(CountingCache scripts) throws Exception {
+        return Generation.build(1, 1, config, dataSource, scripts, null, false, false, null,
+                new Snapshot(file)).getShard();
+    }
+
+    public void testRestore() throws Exception {
+        CountingCache scripts = new CountingCache();
+        Shard shard = build(scripts);
+        assertEquals(1, scripts.count);
+        assertTrue(file.exists());
+        long saved = file.lastModified();
+        assertEquals("200 v1", ReloaderTest.service(shard, "/snap"));
+
+        // restored without compiling, snapshot not rewritten
+        scripts = new CountingCache();
+        shard = build(scripts);
+        assertEquals(0, scripts.count);
+        assertEquals(saved, file.lastModified());
+        assertEquals("200 v1", ReloaderTest.service(shard, "/snap"));
+        assertEquals("200 true,false,true,a+b+c", ReloaderTest.service(shard, "/snap/re"));
+    }
+
+    public void testStale() throws Exception {
+        build(new CountingCache());
+        byte[] v1 = read();
+
+        // changed source is loaded and saved
+        write("2");
+        CountingCache scripts = new CountingCache();
+        Shard shard = build(scripts);
+        assertEquals(1, scripts.count);
+        assertEquals("200 v2", ReloaderTest.service(shard, "/snap"));
+        assertFalse(Arrays.equals(v1, read()));
+
+        scripts = new CountingCache();
+        assertEquals("200 v2", ReloaderTest.service(build(scripts), "/snap"));
+        assertEquals(0, scripts.count);
+    }
+
+    public void testCorrupt() throws Exception {
+        build(new CountingCache());
+        long length = file.length();
+
+        // truncated, then garbage after hash
+        for (int i = 0; i < 2; i++) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (i == 0) {
+                    raf.setLength(length / 2);
+                } else {
+                    raf.seek(length / 2);
+                    raf.write(new byte[100]);
+                }
+            } finally {
+                raf.close();
+            }
+            CountingCache scripts = new CountingCache();
+            Shard shard = build(scripts);
+            assertEquals(1, scripts.count);
+            assertEquals("200 v1", ReloaderTest.service(shard, "/snap"));
+            assertEquals(length, file.length());
+
+            // rewritten snapshot is restored
+            scripts = new CountingCache();
+            shard = build(scripts);
+            assertEquals(0, scripts.count);
+            assertEquals("200 v1", ReloaderTest.service(shard, "/snap"));
+        }
+    }
+
+    private byte[] read() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] buf = new byte[(int) raf.length()];
+            raf.readFully(buf);
+            return buf;
+        } finally {
+            raf.close();
+        }
+    }
+}
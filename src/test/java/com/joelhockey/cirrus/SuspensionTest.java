@@ -0,0 +1,132 @@
+// Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  MIT Licence
+
+package com.joelhockey.cirrus;
+
+import javax.naming.InitialContext;
+
+import junit.framework.TestCase;
+
+import org.hsqldb.jdbc.jdbcDataSource;
+import org.mortbay.jetty.RetryRequest;
+
+import com.mchange.v2.c3p0.DataSources;
+
+/**
+ * Requests suspended with config 'continuations' through
+ * {@link CirrusServlet}.  Scripts are interpreted so requests can be
+ * captured, and must be started from java rather than a running script.
+ * @author Joel Hockey
+ */
+public class SuspensionTest extends TestCase {
+    private CirrusServlet servlet;
+    private int optimizationLevel;
+
+    @Override
+    protected void setUp() throws Exception {
+        InitialContext ic = new InitialContext();
+        if (ic.lookup("jdbc/cirrus") == null) {
+            jdbcDataSource hsqldb = new jdbcDataSource();
+            hsqldb.setDatabase("jdbc:hsqldb:mem:cirrus");
+            hsqldb.setUser("sa");
+            ic.bind("jdbc/cirrus", DataSources.pooledDataSource(hsqldb));
+        }
+        MockServletConfig config = new MockServletConfig();
+        config.getInitParameters().put("dbname", "jdbc/cirrus");
+        config.getInitParameters().put("continuations", "true");
+        optimizationLevel = Cirrus.CONTEXT_FACTORY.getOptimizationLevel();
+        servlet = new CirrusServlet();
+        servlet.init(config);
+    }
+
+    @Override
+    protected void tearDown() {
+        servlet.destroy();
+        Cirrus.CONTEXT_FACTORY.setOptimizationLevel(optimizationLevel);
+    }
+
+    public void testSuspendWaiting() throws Exception {
+        // not a jetty request, servlet thread waits for task
+        MockHttpServletRequest req = new MockHttpServletRequest("GET", "/cirrustest/suspend");
+        MockHttpServletResponse res = new MockHttpServletResponse();
+        servlet.service(req, res);
+        assertEquals(200, res.getStatus());
+        assertTrue(res.getResponse(), res.getResponse().matches("before,\\d+"));
+        assertNull(Suspension.forRequest(req));
+    }
+
+    public void testSuspendRedispatch() throws Exception {
+        // thread released, request resumed when dispatched again
+        MockHttpServletRequest req = new MockHttpServletRequest("GET", "/cirrustest/suspend");
+        MockContinuation continuation = new MockContinuation();
+        req.setAttribute(MockContinuation.ATTRIBUTE, continuation);
+        MockHttpServletResponse res = new MockHttpServletResponse();
+        int suspends = 0;
+        while (true) {
+            try {
+                servlet.service(req, res);
+                break;
+            } catch (RetryRequest rr) {
+                suspends++;
+                assertNotNull(Suspension.forRequest(req));
+                assertTrue("resumed", continuation.awaitResume(5000));
+            }
+        }
+        // suspended by both cirrus.sleep and cirrus.suspend
+        assertEquals(2, suspends);
+        assertEquals(200, res.getStatus());
+        assertTrue(res.getResponse(), res.getResponse().matches("before,\\d+"));
+        assertNull(Suspension.forRequest(req));
+    }
+
+    public void testSuspendTimeout() throws Exception {
+        // dispatched again by container after suspend timeout
+        MockHttpServletRequest req = new MockHttpServletRequest("GET", "/cirrustest/suspend_timeout");
+        MockContinuation continuation = new MockContinuation();
+        req.setAttribute(MockContinuation.ATTRIBUTE, continuation);
+        MockHttpServletResponse res = new MockHttpServletResponse();
+        try {
+            servlet.service(req, res);
+            fail("expected request to suspend");
+        } catch (RetryRequest rr) {
+            assertTrue(continuation.getTimeout() <= 100);
+            assertFalse("resumed", continuation.awaitResume(continuation.getTimeout()));
+        }
+        servlet.service(req, res);
+        assertEquals(503, res.getStatus());
+        assertEquals(-1, res.getResponse().indexOf("not reached"));
+        assertNull(Suspension.forRequest(req));
+    }
+
+    public void testSuspendTimeoutReleasesPermit() throws Exception {
+        // request resumes with 503, 'finally' in cirrus.service releases permits
+        int inflight = Cirrus.ADMISSION.getInflight();
+        MockHttpServletResponse res = timeout("/cirrustest/suspend_timeout");
+        assertEquals("Service Unavailable", res.getResponse());
+        assertEquals(inflight, Cirrus.ADMISSION.getInflight());
+
+        res = timeout("/bulkhead/slow");
+        assertEquals(503, res.getStatus());
+        assertEquals("Service Unavailable", res.getResponse());
+        assertEquals(0, Cirrus.ADMISSION.getBulkhead("bulkhead").getRunning());
+        // bulkhead allows 1 request, available again
+        res = new MockHttpServletResponse();
+        servlet.service(new MockHttpServletRequest("GET", "/bulkhead"), res);
+        assertEquals("ok", res.getResponse());
+    }
+
+    // suspend request, wait for suspend timeout and dispatch again
+    private MockHttpServletResponse timeout(String path) throws Exception {
+        MockHttpServletRequest req = new MockHttpServletRequest("GET", path);
+        MockContinuation continuation = new MockContinuation();
+        req.setAttribute(MockContinuation.ATTRIBUTE, continuation);
+        MockHttpServletResponse res = new MockHttpServletResponse();
+        try {
+            servlet.service(req, res);
+            fail("expected request to suspend");
+        } catch (RetryRequest rr) {
+            assertFalse("resumed", continuation.awaitResume(continuation.getTimeout()));
+        }
+        servlet.service(req, res);
+        return res;
+    }
+}
@@ -28,6 +28,9 @@
 
         // convenience to test HTTP request
         cirrus.test = function(requestLine, headers, params, body) {
+            // java maps wrapped as in cirrus scripts, each test has its own context
+            org.mozilla.javascript.Context.getCurrentContext().setWrapFactory(
+                    com.joelhockey.cirrus.Cirrus.WRAP_FACTORY);
             methodPath = requestLine.split(" ");
             var request = new com.joelhockey.cirrus.MockHttpServletRequest(methodPath[0], methodPath[1]);
             for (var name in headers) {
@@ -37,7 +40,12 @@
                 request.params[name] = params[name];
             }
             var response = new com.joelhockey.cirrus.MockHttpServletResponse();
-            cirrus.service(request, response);
+            try {
+                cirrus.service(request, response);
+            } finally {
+                // request ends, as in CirrusServlet
+                com.joelhockey.cirrus.Deadline.current().clear();
+            }
             return response;
         }
         global.cirrus = cirrus;
@@ -35,6 +35,18 @@ CirrusTest = {
         this.assertResponse("/cirrustest/body_servlet_result", 200, {}, "servlet.result.");
         this.assertResponse("/cirrustest/body_servlet_env_result", 200, {}, "servlet.env.result.");
     },
+
+    testJstWriter: function() {
+        // getWriter after template has used the response stream
+        org.mozilla.javascript.Context.getCurrentContext().setWrapFactory(
+                com.joelhockey.cirrus.Cirrus.WRAP_FACTORY);
+        var request = new com.joelhockey.cirrus.MockHttpServletRequest("GET", "/cirrustest/jst_writer");
+        var response = new com.joelhockey.cirrus.BufferedResponse(
+                new com.joelhockey.cirrus.MockHttpServletResponse());
+        cirrus.service(request, response);
+        assertEquals(200, response.getStatus());
+        assertEquals("jst.servlet.", String(new java.lang.String(response.toByteArray(), "UTF-8")));
+    },
     
     assertResponse: function(path, expectedStatus, expectedHeaders, expectedBody) {
         var request = new com.joelhockey.cirrus.MockHttpServletRequest("GET", path);
@@ -71,5 +83,267 @@ CirrusTest = {
         env = {method: "GET", path: "/cirrustest/before.after", body: []};
         cirrus.forward(env);
         assertEquals("before,$,after", env.body);
+    },
+
+    testEnv: function() {
+        var response = cirrus.test("GET /cirrustest/env_lazy", {h1: "header1"}, {p1: "param1"});
+        assertEquals("param1,header1,true,object", response.getResponse());
+        // env reused by thread, nothing left from previous request
+        response = cirrus.test("GET /cirrustest/env_lazy");
+        assertEquals(",,true,object", response.getResponse());
+
+        // objects emptied when released and reused by next request
+        var request = new com.joelhockey.cirrus.MockHttpServletRequest("GET", "/x");
+        request.params.p1 = "param1";
+        var env = cirrus.env(request, new com.joelhockey.cirrus.MockHttpServletResponse());
+        var params = env.params;
+        var body = env.body;
+        assertEquals("param1", params.p1);
+        body.push("b");
+        env.x = "x";
+        cirrus.release(env);
+        assertTrue(!("p1" in params));
+        assertEquals(0, body.length);
+        env = cirrus.env(new com.joelhockey.cirrus.MockHttpServletRequest("GET", "/y"),
+                new com.joelhockey.cirrus.MockHttpServletResponse());
+        assertTrue(params === env.params);
+        assertTrue(body === env.body);
+        assertTrue(!("x" in env));
+        cirrus.release(env);
+    },
+
+    testForwardRoutes: function() {
+        var env = {method: "GET", path: "/cirrustest/typed/12/1.5/x"};
+        assertEquals("number:12:number:1.5:string:x", cirrus.forward(env));
+        assertEquals("cirrustest", env.controller);
+        assertEquals("typed", env.action);
+
+        // wrong type or arity is not found, unknown method not allowed
+        var response = cirrus.test("GET /cirrustest/typed/abc/1.5/x");
+        assertEquals(404, response.getStatus());
+        response = cirrus.test("GET /cirrustest/typed/12/1.5");
+        assertEquals(404, response.getStatus());
+        response = cirrus.test("PUT /cirrustest/action1");
+        assertEquals(405, response.getStatus());
+        assertEquals("GET, POST", response.headers.Allow);
+    },
+
+    testHalt: function() {
+        var response = cirrus.test("GET /cirrustest/halt");
+        assertEquals(404, response.getStatus());
+        assertEquals(-1, response.getResponse().indexOf("not reached"));
+        response = cirrus.test("GET /cirrustest/throw_status");
+        assertEquals(407, response.getStatus());
+        // halt is seen by catch as status number
+        response = cirrus.test("GET /cirrustest/halt_caught");
+        assertEquals("number,407,true", response.getResponse());
+        try {
+            cirrus.halt(99);
+            fail("expected error for invalid status");
+        } catch (e) {
+            assertTrue(String(e).indexOf("Invalid HTTP status: 99") != -1);
+        }
+    },
+
+    testDeadline: function() {
+        // statements not started once deadline passed
+        var response = cirrus.test("GET /cirrustest/db_deadline");
+        assertEquals(503, response.getStatus());
+        assertEquals("Service Unavailable", response.getResponse());
+        assertEquals("250", cirrus.test("GET /cirrustest/timed").getResponse());
+        assertEquals(undefined, cirrus.route("GET", "/cirrustest/action1").timeout);
+    },
+
+    testSuspend: function() {
+        // not started with continuations, tasks run in current thread
+        var response = cirrus.test("GET /cirrustest/suspend");
+        assertEquals(200, response.getStatus());
+        assertTrue(/^before,\d+$/.test(response.getResponse()));
+        response = cirrus.test("GET /cirrustest/suspend_error");
+        assertTrue(response.getResponse().indexOf("task error") != -1);
+    },
+
+    testDispatcher: function() {
+        var Dispatcher = com.joelhockey.cirrus.Dispatcher;
+        var dispatcher = new Dispatcher(1, 1, 10000);
+        // requests run on pool thread, wrap java maps in this test's context
+        org.mozilla.javascript.Context.getCurrentContext().setWrapFactory(com.joelhockey.cirrus.Cirrus.WRAP_FACTORY);
+        try {
+            // request runs on pool thread, buffered response copied back
+            var request = new com.joelhockey.cirrus.MockHttpServletRequest("GET", "/cirrustest/headers_servlet_env_result");
+            var response = new com.joelhockey.cirrus.MockHttpServletResponse();
+            dispatcher.dispatch(request, response, new Dispatcher.Handler({
+                service: function(req, res) { cirrus.service(req, res); }
+            }));
+            assertEquals(200, response.getStatus());
+            assertEquals("result", response.headers.common);
+            assertEquals(1, dispatcher.getCompletedCount());
+
+            // fill thread and queue, next request is rejected
+            var started = new java.util.concurrent.CountDownLatch(1);
+            var latch = new java.util.concurrent.CountDownLatch(1);
+            var blocked = new Dispatcher.Handler({
+                service: function(req, res) {
+                    started.countDown();
+                    latch.await();
+                    res.setStatus(204);
+                }
+            });
+            var responses = [];
+            var threads = [];
+            for (var i = 0; i < 2; i++) {
+                responses[i] = new com.joelhockey.cirrus.MockHttpServletResponse();
+                threads[i] = new java.lang.Thread((function(res) {
+                    return function() {
+                        dispatcher.dispatch(new com.joelhockey.cirrus.MockHttpServletRequest(
+                                "GET", "/blocked"), res, blocked);
+                    };
+                })(responses[i]));
+                threads[i].start();
+                // first request running before second is queued
+                started.await();
+            }
+            for (var i = 0; i < 500 && dispatcher.getQueueDepth() < 1; i++) {
+                java.lang.Thread.sleep(10);
+            }
+            assertEquals(1, dispatcher.getActiveCount());
+            assertEquals(1, dispatcher.getQueueDepth());
+            response = new com.joelhockey.cirrus.MockHttpServletResponse();
+            dispatcher.dispatch(new com.joelhockey.cirrus.MockHttpServletRequest(
+                    "GET", "/rejected"), response, blocked);
+            assertEquals(503, response.getStatus());
+            assertEquals(1, dispatcher.getRejectedCount());
+
+            latch.countDown();
+            threads[0].join();
+            threads[1].join();
+            assertEquals(204, responses[0].getStatus());
+            assertEquals(204, responses[1].getStatus());
+            assertEquals(3, dispatcher.getCompletedCount());
+        } finally {
+            dispatcher.shutdown();
+        }
+    },
+
+    testAdmission: function() {
+        // controller bulkhead allows 1 request, no queue
+        var route = cirrus.route("GET", "/bulkhead");
+        assertEquals(1, route.concurrency);
+        assertEquals(0, route.queue);
+        assertEquals("ok", cirrus.test("GET /bulkhead").getResponse());
+        // rejected request renders error page
+        assertEquals("nested:503:Service Unavailable", cirrus.test("GET /bulkhead/nested").getResponse());
+        var bulkhead = com.joelhockey.cirrus.Cirrus.ADMISSION.getBulkhead("bulkhead");
+        assertEquals(1, bulkhead.getRejectedCount());
+        assertEquals(0, bulkhead.getRunning());
+
+        // shared limit rejects when full and backs off after 503
+        var admission = new com.joelhockey.cirrus.Admission();
+        admission.setLimit(2, 8);
+        var p1 = admission.admit("a", 0, 0);
+        var p2 = admission.admit("b", 0, 0);
+        assertNull(admission.admit("c", 0, 0));
+        assertEquals(1, admission.getRejectedCount());
+        assertEquals(2, admission.getInflight());
+        p1.release(503);
+        p1.release(503); // ignored
+        assertEquals(1, admission.getInflight());
+        assertEquals(1, admission.getLimit());
+        assertNull(admission.admit("c", 0, 0));
+        p2.release(200);
+        assertEquals(0, admission.getInflight());
+        assertNotNull(admission.admit("c", 0, 0));
+    },
+
+    testTemplateWriter: function() {
+        var sw = new java.io.StringWriter();
+        var out = new com.joelhockey.cirrus.TemplateWriter(sw);
+        out.write("a");
+        out.write(1);
+        cirrus.h("<b>", out);
+        // other properties from wrapped writer
+        out.append("c");
+        assertEquals("a1&lt;b&gt;c", String(sw.toString()));
+
+        // stream written as UTF-8, text already encoded
+        var baos = new java.io.ByteArrayOutputStream();
+        out = new com.joelhockey.cirrus.TemplateWriter(baos);
+        out.write(new com.joelhockey.cirrus.TemplateText("\u00e9"));
+        out.write("\u20ac\ud83d\ude00");
+        cirrus.h("<b>", out);
+        assertEquals("\u00e9\u20ac\ud83d\ude00&lt;b&gt;", String(baos.toString("UTF-8")));
+        assertEquals(2 + 3 + 4 + 9, baos.size());
+    },
+
+    testEscape: function() {
+        // global 'h' from cirrus writes escaped values directly to TemplateWriter
+        assertTrue(String(h).indexOf("native code") != -1);
+        var sw = new java.io.StringWriter();
+        var out = new com.joelhockey.cirrus.TemplateWriter(sw);
+        var values = ["a&b<c>\"d'", "safe", 12, -3, 1.5, 1e21, true,
+                false, 0, null, undefined, "", {toString: function() { return "<o>"; }}];
+        for (var i = 0; i < values.length; i++) {
+            h(values[i], out);
+            out.write("|");
+        }
+        var expected = "a&amp;b&lt;c&gt;&quot;d&#39;|safe|12|-3|1.5|1e+21|true||||||&lt;o&gt;|";
+        assertEquals(expected, String(sw.toString()));
+
+        // same for stream, other 'out' and no 'out'
+        var baos = new java.io.ByteArrayOutputStream();
+        out = new com.joelhockey.cirrus.TemplateWriter(baos);
+        var buf = { buf: [], write: function(s) { this.buf.push(s); } };
+        var returned = [];
+        for (var i = 0; i < values.length; i++) {
+            h(values[i], out);
+            out.write("|");
+            h(values[i], buf);
+            buf.write("|");
+            returned.push(h(values[i]));
+        }
+        assertEquals(expected, String(baos.toString("UTF-8")));
+        assertEquals(expected, buf.buf.join(""));
+        assertEquals(expected, returned.join("|") + "|");
+    },
+
+    testPage: function() {
+        // prototype and partials flattened into one render function
+        var template = cirrus.jst("test.hello");
+        var page = JST.pages["test.hello"];
+        assertNotNull(page);
+        var render = function(f) {
+            var sw = new java.io.StringWriter();
+            f.call(template, new com.joelhockey.cirrus.TemplateWriter(sw), {a: "<a>", params: {p: 1}});
+            return String(sw.toString());
+        };
+        assertEquals(render(template.render), render(page));
+        assertTrue(render(page).indexOf("_form partial _form partial _recurse partial") != -1);
+    },
+
+    testRequire: function() {
+        var counter = cirrus.require("lib/counter");
+        assertEquals("same module", counter, cirrus.require("lib/counter.js"));
+        assertEquals("same module relative", cirrus.require("lib/format"),
+                cirrus.require("lib/../lib/./format"));
+        var first = Number(counter.next());
+        assertEquals(first + 1, Number(counter.next()));
+        // module vars not global
+        assertEquals("undefined", typeof count);
+        assertEquals("undefined", typeof format);
+        try {
+            cirrus.require("lib/nothere");
+            fail("expected error for missing module");
+        } catch (e) {
+            assertTrue(String(e).indexOf("File not found: /app/lib/nothere.js") != -1);
+        }
+    },
+
+    testControllerModule: function() {
+        var env = {method: "GET", path: "/moduletest", body: []};
+        var first = cirrus.forward(env);
+        assertTrue(/^count:\d\d$/.test(first));
+        assertTrue(first !== cirrus.forward(env));
+        assertEquals(cirrus.require("controllers/moduletest"),
+                cirrus.controller("moduletest"));
     }
 }
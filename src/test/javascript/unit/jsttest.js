@@ -45,6 +45,169 @@ JSTTest = {
         }
     },
     
+    testParsed: function() {
+        // parse every test, even if an earlier one renders differently
+        var tests = readFile("/jst.tests.txt").split(/\r?\n=====\r?\n/);
+        var failed = [];
+        for (var i = 0; i < tests.length; i++) {
+            var name = "Test" + (i + 1);
+            var parts = tests[i].split(/\r?\n-----\r?\n/);
+            if (JST.parse(name, parts[0]) !== parts[1].replace(/\r/g, "")) {
+                failed.push(name);
+            }
+        }
+        assertEquals("parsed", "", failed.join(","));
+    },
+
+    testParseLarge: function() {
+        // parse time is linear in size, large templates well within bound
+        var sources = {
+            Tags: new Array(10001).join("${x}"),
+            Text: new Array(100001).join("text "),
+            Lines: new Array(20001).join("line\n"),
+            Mixed: new Array(5001).join("text ${x}\n{if (x)}if{/if}\n")
+        };
+        var expected = {
+            Tags: new Array(10001).join("1"),
+            Text: sources.Text,
+            Lines: sources.Lines,
+            Mixed: new Array(5001).join("text 1\nif\n")
+        };
+        for (var name in sources) {
+            var start = new Date().getTime();
+            var parsed = JST.parse("Large" + name, sources[name]);
+            var millis = new Date().getTime() - start;
+            assertTrue("Large" + name + " took " + millis + "ms", millis < 5000);
+            eval(parsed);
+            assertEquals("Large" + name, expected[name], JST.render("Large" + name, {x: 1}));
+        }
+    },
+
+    testScope: function() {
+        load("/setup.js"); // cirrus defines global 'JST$name' used by bound templates
+        var global = (function() { return this; })();
+        var bind = function(name, src) {
+            return String(com.joelhockey.cirrus.TemplateScope.bind(
+                    org.mozilla.javascript.Context.getCurrentContext(),
+                    JST.parse(name, src), global));
+        };
+        var render = function(name, src, cx) {
+            delete JST.templates[name];
+            eval(src);
+            var out = { buf: [], write: function(s) { this.buf.push(s); } };
+            JST.templates[name].render(out, cx);
+            return out.buf.join("");
+        };
+
+        // same output and line numbers without 'with'
+        var tests = readFile("/jst.tests.txt").split(/\r?\n=====\r?\n/);
+        for (var i = 0; i < tests.length; i++) {
+            var name = "Test" + (i + 1);
+            var parts = tests[i].split(/\r?\n-----\r?\n/);
+            var parsed = JST.parse(name, parts[0]);
+            var bound = bind(name, parts[0]);
+            assertEquals(name + ":with", -1, bound.indexOf("with (cx)"));
+            assertEquals(name + ":lines", parsed.split("\n").length, bound.split("\n").length);
+            assertEquals(name + ":rendered", render(name, parsed, eval("(" + parts[2] + ")")),
+                    render(name, bound, eval("(" + parts[2] + ")")));
+        }
+
+        // names from cx, then global
+        JSTScopeGlobal = "global";
+        assertEquals("a,global", render("ScopeGlobal",
+                bind("ScopeGlobal", "{eval out.write([a, JSTScopeGlobal])}"), {a: "a"}));
+
+        // names in neither cx nor global are errors, as with 'with (cx)'
+        try {
+            render("ScopeMissing", bind("ScopeMissing", "${JSTScopeMissing}"), {});
+            fail("expected ReferenceError");
+        } catch (e) {
+            assertEquals("ReferenceError", e.name);
+        }
+
+        // assignment, eval and calls which may be methods of cx keep 'with'
+        assertTrue(bind("ScopeWith1", "{eval a = 1}").indexOf("with (cx)") != -1);
+        assertTrue(bind("ScopeWith2", "{eval eval('a')}").indexOf("with (cx)") != -1);
+        assertTrue(bind("ScopeWith3", "${f()}").indexOf("with (cx)") != -1);
+        assertEquals(-1, bind("ScopeWith4", "${String(a)}").indexOf("with (cx)"));
+    },
+
+    testText: function() {
+        // text moved out of template functions renders the same
+        var Context = org.mozilla.javascript.Context;
+        var render = function(name, src, cx) {
+            delete JST.templates[name];
+            eval(src);
+            var out = { buf: [], write: function(s) { this.buf.push(s); } };
+            JST.templates[name].render(out, cx);
+            return out.buf.join("");
+        };
+        var tests = readFile("/jst.tests.txt").split(/\r?\n=====\r?\n/);
+        for (var i = 0; i < tests.length; i++) {
+            var name = "Test" + (i + 1);
+            var parts = tests[i].split(/\r?\n-----\r?\n/);
+            var parsed = JST.parse(name, parts[0]);
+            var text = String(com.joelhockey.cirrus.TemplateText.extract(
+                    Context.getCurrentContext(), parsed));
+            assertEquals(name + ":text", -1, text.indexOf('out.write("'));
+            assertEquals(name + ":lines", parsed.split("\n").length,
+                    text.substring(0, text.lastIndexOf("\n})([")).split("\n").length);
+            assertEquals(name + ":rendered", render(name, parsed, eval("(" + parts[2] + ")")),
+                    render(name, text, eval("(" + parts[2] + ")")));
+        }
+    },
+
+    testPage: function() {
+        var sources = {
+            Page1: "<h1>{function title}title{/function title}</h1>\n"
+                + "{for (var j in list)}{function body}body{/function body}{forelse}empty{/for}.",
+            Page2: "{prototype Page1}\n"
+                + "{function body}{for (var i in items)}[{render Page3}]{forelse}none{/for}{/function body}",
+            Page3: "p3 {function recurse}{render Page4}{/function recurse}",
+            Page4: "{prototype Page3}\n{function recurse}${list.a}{/function recurse}",
+            Page5: "{function title}{eval return}x{/function title}"
+        };
+        var parsed = {};
+        for (var name in sources) {
+            delete JST.templates[name];
+            parsed[name] = JST.parse(name, sources[name]);
+            eval(parsed[name]);
+        }
+        // flatten takes java map of sources
+        parsed = com.joelhockey.cirrus.RhinoJava.rhino2java(parsed);
+        var flatten = function(name) {
+            return String(com.joelhockey.cirrus.TemplatePage.flatten(
+                    org.mozilla.javascript.Context.getCurrentContext(), name, parsed));
+        };
+        var render = function(f, template, cx) {
+            var out = { buf: [], write: function(s) { this.buf.push(s); } };
+            f.call(template, out, cx);
+            return out.buf.join("");
+        };
+
+        // functions from prototypes and partials inlined, same output
+        var cxs = [{list: {a: 1, b: 2}, items: {x: 1}}, {list: {a: 1}, items: {}},
+                {list: {}, items: {}}];
+        for (var name in sources) {
+            var page = flatten(name);
+            eval(page);
+            for (var i = 0; i < cxs.length; i++) {
+                assertEquals(name, render(JST.templates[name].render, JST.templates[name], cxs[i]),
+                        render(JST.pages[name], JST.templates[name], cxs[i]));
+            }
+        }
+        assertEquals("<h1>title</h1>\n[p3 p3 1][p3 p3 1].",
+                render(JST.pages.Page2, JST.templates.Page2, cxs[0]));
+        // 'forcounter' in inlined body does not change outer 'forcounter'
+        assertEquals("<h1>title</h1>\nnone.", render(JST.pages.Page2, JST.templates.Page2, cxs[1]));
+        var page2 = flatten("Page2");
+        assertEquals(-1, page2.indexOf("hasOwnProperty"));
+        assertEquals(-1, page2.indexOf("render(out, cx)"));
+        // 'return' in function keeps call
+        assertTrue(flatten("Page5").indexOf("this.title(out, cx)") != -1);
+        assertEquals("null", flatten("Nothere"));
+    },
+
     testErrors: function() {
         // each test definition separated by line of '====='
         var tests = readFile("/jst.errors.txt").split(/\r?\n=====\r?\n/);
@@ -0,0 +1,21 @@
+cirrus.controllers.bulkhead = {
+    // own bulkhead so slow requests do not hold up other controllers
+    concurrency: 1,
+    queue: 0,
+    GET: {
+        index: function() {
+            return "ok";
+        },
+        // nested request to same controller is rejected by bulkhead
+        nested: function() {
+            var response = cirrus.test("GET /bulkhead");
+            return "nested:" + response.getStatus() + ":" + response.getResponse();
+        },
+        // suspended longer than its deadline
+        slow: function() {
+            cirrus.sleep(2000);
+            return "not reached";
+        },
+    }
+};
+cirrus.controllers.bulkhead.GET.slow.timeout = 100;
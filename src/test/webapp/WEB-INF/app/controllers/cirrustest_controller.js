@@ -98,6 +98,51 @@ cirrus.controllers.cirrustest = {
             this.response.getWriter().write("servlet.");
             return "result.";
         },
+        halt: function() {
+            cirrus.halt(404);
+            return "not reached";
+        },
+        halt_caught: function() {
+            try {
+                cirrus.halt(407);
+            } catch (e) {
+                return [typeof e, e, e === 407].join(",");
+            }
+        },
+        throw_status: function() {
+            throw 407;
+        },
+        suspend: function() {
+            var before = "before";
+            cirrus.sleep(10);
+            var result = cirrus.suspend(function() {
+                return cirrus.db.selectInt("select count(*) from db_version");
+            });
+            return [before, result].join(",");
+        },
+        suspend_error: function() {
+            try {
+                cirrus.suspend(function() {
+                    throw new java.io.IOException("task error");
+                });
+            } catch (e) {
+                return String(e);
+            }
+        },
+        db_deadline: function() {
+            cirrus.deadline(1);
+            java.lang.Thread.sleep(5);
+            cirrus.db.selectInt("select count(*) from db_version");
+            return "not reached";
+        },
+        env_lazy: function() {
+            return [this.params.p1, this.requestHeaders.h1,
+                    "body" in this, typeof this.cookies].join(",");
+        },
+        jst_writer: function() {
+            this.jst("test", "scope", {JSTScopeRequest: "jst."});
+            this.response.getWriter().write("servlet.");
+        },
         body_servlet_env_result: function() {
             this.response.getWriter().write("servlet.");
             this.body.push("env.");
@@ -111,3 +156,22 @@ cirrus.controllers.cirrustest = {
     }
     
 };
+
+// typed path params
+cirrus.controllers.cirrustest.GET.typed = function(id, price, name) {
+    return [typeof id, id, typeof price, price, typeof name, name].join(":");
+};
+cirrus.controllers.cirrustest.GET.typed.types = ["int", "number", "string"];
+
+// route with its own deadline
+cirrus.controllers.cirrustest.GET.timed = function() {
+    return String(cirrus.route("GET", "/cirrustest/timed").timeout);
+};
+cirrus.controllers.cirrustest.GET.timed.timeout = 250;
+
+// suspended longer than its deadline
+cirrus.controllers.cirrustest.GET.suspend_timeout = function() {
+    cirrus.sleep(2000);
+    return "not reached";
+};
+cirrus.controllers.cirrustest.GET.suspend_timeout.timeout = 100;
@@ -0,0 +1,8 @@
+// controller module, loaded on first request to '/moduletest'
+var counter = require("../lib/counter");
+
+exports.GET = {
+    $: function() {
+        return "count:" + counter.next();
+    },
+};
@@ -0,0 +1,7 @@
+// module vars stay in module scope
+var count = 0;
+var format = require("./format");
+
+exports.next = function() {
+    return format.pad(++count);
+};
@@ -0,0 +1,3 @@
+exports.pad = function(n) {
+    return n < 10 ? "0" + n : String(n);
+};